@@ -0,0 +1,97 @@
+package aqua.blatt7.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Minimal stand-in for JMH shared by the benchmarks in this package: timed warmup and
+ * measurement iterations on the calling thread, reporting throughput and bytes allocated per
+ * operation (from the per-thread allocation counter of HotSpot, i.e. what JMH's gc profiler
+ * reports as {@code gc.alloc.rate.norm}).
+ * <p>
+ * A benchmark is a {@link Operation} that may return a value; results are folded into a sink
+ * so the JIT cannot drop the work. Operations that process a batch per call pass the batch
+ * size as {@code opsPerCall}, which keeps the harness overhead out of nanosecond-scale numbers.
+ */
+public final class BenchmarkHarness {
+
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final String filter;
+    private int sink;
+
+    /** Only benchmarks whose name contains {@code filter} run; {@code null} runs all. */
+    public BenchmarkHarness(String filter) {
+        this.filter = filter;
+        if (THREADS.isThreadAllocatedMemorySupported()) {
+            THREADS.setThreadAllocatedMemoryEnabled(true);
+        }
+        System.out.printf("%-40s %15s %12s %12s%n", "Benchmark", "ops/s", "+- (%)", "B/op");
+    }
+
+    public void run(String name, Operation op) {
+        run(name, 1, op);
+    }
+
+    public void run(String name, int opsPerCall, Operation op) {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                iteration(op, opsPerCall);
+            }
+            double[] throughput = new double[MEASURE_ITERATIONS];
+            long allocated = 0, ops = 0;
+            for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+                long allocBefore = allocatedBytes();
+                long[] result = iteration(op, opsPerCall);
+                allocated += allocatedBytes() - allocBefore;
+                ops += result[0];
+                throughput[i] = result[0] * 1e9 / result[1];
+            }
+            double mean = 0;
+            for (double t : throughput) mean += t / MEASURE_ITERATIONS;
+            double variance = 0;
+            for (double t : throughput) variance += (t - mean) * (t - mean) / MEASURE_ITERATIONS;
+            System.out.printf(Locale.ROOT, "%-40s %,15.0f %12.1f %12.1f%n", name, mean,
+                    100 * Math.sqrt(variance) / mean, (double) allocated / ops);
+        } catch (Exception e) {
+            System.out.printf("%-40s failed: %s%n", name, e);
+        }
+    }
+
+    /** Runs for about {@link #ITERATION_NANOS}; returns {ops, elapsed nanos}. */
+    private long[] iteration(Operation op, int opsPerCall) throws Exception {
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 16; i++) {
+                Object result = op.run();
+                sink += result == null ? 0 : System.identityHashCode(result);
+            }
+            calls += 16;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return new long[] {calls * opsPerCall, elapsed};
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
+
+    /** Keeps the sink alive; print it once at the end of a run. */
+    public int getSink() {
+        return sink;
+    }
+}
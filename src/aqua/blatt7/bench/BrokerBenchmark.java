@@ -0,0 +1,170 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt1.common.msgtypes.RegisterRequest;
+import aqua.blatt5.common.msgtypes.NameResolutionRequest;
+import aqua.blatt5.common.msgtypes.NameResolutionResponse;
+import aqua.blatt7.broker.Broker;
+import aqua.blatt7.common.msgtypes.RegisterResponse;
+import aqua.blatt7.transport.NioEndpoint;
+import messaging.Message;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Registrations and name resolutions per second of an in-process {@link Broker}, once per
+ * {@link Broker.ExecutionMode}. Every client thread owns an endpoint and runs a closed loop
+ * (send a request, wait for the answer); registrations after the first one renew the lease.
+ * Run with {@code java aqua.blatt7.bench.BrokerBenchmark [clients]}.
+ */
+public class BrokerBenchmark {
+
+    private static final int BASE_PORT = 4811;
+    private static final int DEFAULT_CLIENTS = 64;
+    private static final long WARMUP_MS = 2000;
+    private static final long MEASURE_MS = 5000;
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final int clientCount;
+
+    private BrokerBenchmark(int clientCount) {
+        this.clientCount = clientCount;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        BrokerBenchmark benchmark = new BrokerBenchmark(clients);
+        int port = BASE_PORT;
+        for (Broker.ExecutionMode mode : Broker.ExecutionMode.values()) {
+            benchmark.run(mode, port++);
+        }
+        System.exit(0); // brokers have no shutdown hook
+    }
+
+    private void run(Broker.ExecutionMode mode, int port) throws InterruptedException {
+        Broker broker = new Broker(port, mode);
+        Thread server = new Thread(broker::serve, "broker-" + mode);
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress brokerAddress = new InetSocketAddress("localhost", port);
+
+        Client[] clients = new Client[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new Client(brokerAddress);
+            clients[i].register(); // every client gets a tank id first
+        }
+        String[] tankIds = new String[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            tankIds[i] = clients[i].tankId;
+        }
+
+        Result registrations = measure(clients, Client::register);
+        Result resolutions = measure(clients, c ->
+                c.resolve(tankIds[ThreadLocalRandom.current().nextInt(tankIds.length)]));
+
+        System.out.printf("%-10s %3d clients: %,10.0f registrations/s (%d timeouts), %,10.0f resolutions/s (%d timeouts)%n",
+                mode, clientCount, registrations.perSecond, registrations.timeouts,
+                resolutions.perSecond, resolutions.timeouts);
+        for (Client client : clients) {
+            client.endpoint.close();
+        }
+    }
+
+    interface Operation {
+        boolean run(Client client);
+    }
+
+    static final class Result {
+        final double perSecond;
+        final long timeouts;
+
+        Result(double perSecond, long timeouts) {
+            this.perSecond = perSecond;
+            this.timeouts = timeouts;
+        }
+    }
+
+    static Result measure(Client[] clients, Operation op) throws InterruptedException {
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong completed = new AtomicLong();
+        AtomicLong timeouts = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(clients.length);
+        for (Client client : clients) {
+            Thread thread = new Thread(() -> {
+                while (!stop.get()) {
+                    boolean ok = op.run(client);
+                    if (measuring.get()) {
+                        (ok ? completed : timeouts).incrementAndGet();
+                    }
+                }
+                done.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(WARMUP_MS);
+        measuring.set(true);
+        long start = System.nanoTime();
+        Thread.sleep(MEASURE_MS);
+        measuring.set(false);
+        long elapsed = System.nanoTime() - start;
+        stop.set(true);
+        done.await();
+        return new Result(completed.get() * 1e9 / elapsed, timeouts.get());
+    }
+
+    static final class Client {
+        final NioEndpoint endpoint = new NioEndpoint();
+        final InetSocketAddress broker;
+        String tankId;
+        long requestCounter;
+
+        Client(InetSocketAddress broker) {
+            this.broker = broker;
+        }
+
+        boolean register() {
+            endpoint.send(broker, new RegisterRequest());
+            RegisterResponse response = await(RegisterResponse.class, null);
+            if (response == null) {
+                return false;
+            }
+            tankId = response.getId();
+            return true;
+        }
+
+        boolean resolve(String id) {
+            String requestId = tankId + "-" + requestCounter++;
+            endpoint.send(broker, new NameResolutionRequest(id, requestId));
+            return await(NameResolutionResponse.class, requestId) != null;
+        }
+
+        /** Waits for the answer, skipping neighbor updates and stale answers; null on timeout. */
+        <T extends Serializable> T await(Class<T> type, String requestId) {
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (System.nanoTime() < deadline) {
+                Message message = endpoint.nonBlockingReceive();
+                if (message == null) {
+                    LockSupport.parkNanos(20_000);
+                    continue;
+                }
+                Serializable payload = message.getPayload();
+                if (!type.isInstance(payload)) {
+                    continue;
+                }
+                if (requestId != null && !requestId.equals(((NameResolutionResponse) payload).getRequestId())) {
+                    continue;
+                }
+                return type.cast(payload);
+            }
+            return null;
+        }
+    }
+}
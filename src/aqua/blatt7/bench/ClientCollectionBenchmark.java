@@ -0,0 +1,102 @@
+package aqua.blatt7.bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The broker's client lookups with the indexed {@link aqua.blatt7.broker.ClientCollection}
+ * against the list-based {@link aqua.blatt6.broker.ClientCollection}, at 10k and 100k
+ * registered tanks: lookup by id (name resolution), by address (every RegisterRequest),
+ * both neighbors of a tank, and a tank joining and leaving.
+ * The old list cannot map an index back to an id, so its address lookup is only the
+ * {@code indexOf} scan – the broker needed a further scan per id on top
+ * ({@code findIdByAddress}), which is timed once at the end.
+ * Run with {@code java aqua.blatt7.bench.ClientCollectionBenchmark [name filter]}.
+ */
+public class ClientCollectionBenchmark {
+
+    private static final int[] SIZES = {10_000, 100_000};
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkHarness harness = new BenchmarkHarness(args.length > 0 ? args[0] : null);
+        for (int size : SIZES) {
+            InetSocketAddress[] addresses = addresses(size + 1);
+            indexed(harness, size, addresses);
+            list(harness, size, addresses);
+        }
+        findIdByAddress(addresses(SIZES[0]));
+        System.out.println("(sink " + harness.getSink() + ")");
+    }
+
+    private static void indexed(BenchmarkHarness harness, int size, InetSocketAddress[] addresses) {
+        aqua.blatt7.broker.ClientCollection<InetSocketAddress> clients = new aqua.blatt7.broker.ClientCollection<>();
+        for (int i = 0; i < size; i++) {
+            clients.add("tank" + i, addresses[i]);
+        }
+        String prefix = "indexed." + size / 1000 + "k.";
+        harness.run(prefix + "getById", () -> clients.get("tank" + random(size)));
+        harness.run(prefix + "idOfAddress", () -> clients.getIdOf(addresses[random(size)]));
+        harness.run(prefix + "neighbors", () -> {
+            String id = "tank" + random(size);
+            return clients.getLeftNeighorOf(id).getPort() + clients.getRightNeighorOf(id).getPort();
+        });
+        harness.run(prefix + "joinLeave", () -> {
+            clients.add("new", addresses[size]);
+            return clients.removeById("new");
+        });
+    }
+
+    private static void list(BenchmarkHarness harness, int size, InetSocketAddress[] addresses) {
+        aqua.blatt6.broker.ClientCollection<InetSocketAddress> clients = new aqua.blatt6.broker.ClientCollection<>();
+        for (int i = 0; i < size; i++) {
+            clients.add("tank" + i, addresses[i]);
+        }
+        String prefix = "list." + size / 1000 + "k.";
+        harness.run(prefix + "getById", () -> clients.get("tank" + random(size)));
+        harness.run(prefix + "idOfAddress", () -> clients.indexOf(addresses[random(size)]));
+        harness.run(prefix + "neighbors", () -> {
+            int index = clients.indexOf("tank" + random(size));
+            return clients.getLeftNeighorOf(index).getPort() + clients.getRightNeighorOf(index).getPort();
+        });
+        harness.run(prefix + "joinLeave", () -> {
+            clients.add("new", addresses[size]);
+            clients.removeById("new");
+            return null;
+        });
+    }
+
+    /* The broker's former id lookup: one get() scan per registered id */
+    private static void findIdByAddress(InetSocketAddress[] addresses) {
+        aqua.blatt6.broker.ClientCollection<InetSocketAddress> clients = new aqua.blatt6.broker.ClientCollection<>();
+        for (int i = 0; i < addresses.length; i++) {
+            clients.add("tank" + i, addresses[i]);
+        }
+        InetSocketAddress wanted = addresses[addresses.length - 1];
+        long start = System.nanoTime();
+        String found = null;
+        for (String id : new HashSet<>(clients.getIds())) {
+            if (clients.get(id).equals(wanted)) {
+                found = id;
+                break;
+            }
+        }
+        System.out.printf("list.%dk.findIdByAddress (former Broker code, one call): %.1f ms (%s)%n",
+                addresses.length / 1000, (System.nanoTime() - start) / 1e6, found);
+    }
+
+    private static int random(int bound) {
+        return ThreadLocalRandom.current().nextInt(bound);
+    }
+
+    private static InetSocketAddress[] addresses(int count) throws UnknownHostException {
+        InetSocketAddress[] addresses = new InetSocketAddress[count];
+        for (int i = 0; i < count; i++) {
+            byte[] ip = {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+            addresses[i] = new InetSocketAddress(InetAddress.getByAddress(ip), 4711);
+        }
+        return addresses;
+    }
+}
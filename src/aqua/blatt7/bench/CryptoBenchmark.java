@@ -0,0 +1,223 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt1.common.Direction;
+import aqua.blatt1.common.FishModel;
+import aqua.blatt1.common.msgtypes.HandoffRequest;
+import aqua.blatt7.common.MessageTypes;
+import aqua.blatt7.crypto.SecureEndpoint;
+import aqua.blatt7.transport.NioEndpoint;
+import aqua.blatt7.transport.TransportMetrics;
+import messaging.Endpoint;
+import messaging.Message;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cost of encryption on the handoff path: N tanks in a ring pass fish to their right
+ * neighbor as fast as they arrive, once over plain {@link Endpoint}s and once per
+ * {@link SecureEndpoint.Mode}. Reports hop latency percentiles, handoffs per second and
+ * process CPU time per handoff, plus the encrypt/decrypt latencies recorded by
+ * {@link TransportMetrics}.
+ * <p>
+ * {@code SecureEndpoint} sends {@link HandoffRequest}s unencrypted (whitelist), so the fish
+ * travel as their wire encoding in a {@code byte[]}, which every secure mode encrypts; the
+ * first 8 bytes carry the send time. The broker is left out – registration is plaintext in
+ * every mode and measured by {@link BrokerBenchmark}.
+ * Run with {@code java aqua.blatt7.bench.CryptoBenchmark [tanks] [fish per tank]}.
+ */
+public class CryptoBenchmark {
+
+    private static final int BASE_PORT = 5011;
+    private static final int DEFAULT_TANKS = 4;
+    private static final int DEFAULT_FISH_PER_TANK = 2;
+    private static final long WARMUP_MS = 2000;
+    private static final long MEASURE_MS = 5000;
+
+    private static final com.sun.management.OperatingSystemMXBean OS =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    /** Transport under test. */
+    private enum Variant { PLAIN, RSA_PER_MESSAGE, SESSION_KEY }
+
+    private final int tankCount;
+    private final int fishPerTank;
+
+    private CryptoBenchmark(int tankCount, int fishPerTank) {
+        this.tankCount = tankCount;
+        this.fishPerTank = fishPerTank;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tanks = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TANKS;
+        int fish = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_FISH_PER_TANK;
+        CryptoBenchmark benchmark = new CryptoBenchmark(tanks, fish);
+        int port = BASE_PORT;
+        for (Variant variant : Variant.values()) {
+            benchmark.run(variant, port);
+            port += tanks;
+        }
+        System.exit(0); // endpoints keep non-daemon threads
+    }
+
+    private void run(Variant variant, int basePort) throws Exception {
+        Tank[] tanks = new Tank[tankCount];
+        for (int i = 0; i < tankCount; i++) {
+            tanks[i] = new Tank("tank" + i, link(variant, basePort + i));
+        }
+        for (int i = 0; i < tankCount; i++) {
+            tanks[i].right = new InetSocketAddress("localhost", basePort + (i + 1) % tankCount);
+        }
+        for (Tank tank : tanks) {
+            for (int f = 0; f < fishPerTank; f++) {
+                tank.handOff(new FishModel("fish" + f + "@" + tank.getName(), 0, 0, Direction.RIGHT));
+            }
+            tank.start();
+        }
+
+        Thread.sleep(WARMUP_MS);
+        TransportMetrics.global().reset();
+        for (Tank tank : tanks) {
+            tank.measuring = true;
+        }
+        long cpuStart = OS.getProcessCpuTime();
+        long start = System.nanoTime();
+        Thread.sleep(MEASURE_MS);
+        for (Tank tank : tanks) {
+            tank.measuring = false;
+        }
+        long elapsed = System.nanoTime() - start;
+        long cpu = OS.getProcessCpuTime() - cpuStart;
+
+        long[] latencies = new long[0];
+        for (Tank tank : tanks) {
+            long[] samples = tank.samples();
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + samples.length);
+            System.arraycopy(samples, 0, latencies, offset, samples.length);
+        }
+        Arrays.sort(latencies);
+        int handoffs = latencies.length;
+        System.out.printf("%-16s %d tanks, %2d fish: %,9.0f handoffs/s  p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  cpu %6.1f us/handoff%n",
+                variant, tankCount, tankCount * fishPerTank, handoffs * 1e9 / elapsed,
+                percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.99) / 1e3,
+                percentile(latencies, 0.999) / 1e3, handoffs == 0 ? 0 : cpu / 1e3 / handoffs);
+        if (variant != Variant.PLAIN) {
+            TransportMetrics metrics = TransportMetrics.global();
+            System.out.println("                 encrypt " + metrics.getEncryptLatency()
+                    + ", decrypt " + metrics.getDecryptLatency());
+        }
+        for (Tank tank : tanks) {
+            tank.interrupt();
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (quantile * sorted.length))];
+    }
+
+    // ---------------------------------------------------------------------
+    //  Transports
+    // ---------------------------------------------------------------------
+
+    private interface Link {
+        void send(InetSocketAddress receiver, Serializable payload);
+
+        Message blockingReceive();
+    }
+
+    private static Link link(Variant variant, int port) {
+        if (variant == Variant.PLAIN) {
+            Endpoint endpoint = new Endpoint(port);
+            return new Link() {
+                public void send(InetSocketAddress receiver, Serializable payload) {
+                    endpoint.send(receiver, payload);
+                }
+
+                public Message blockingReceive() {
+                    return endpoint.blockingReceive();
+                }
+            };
+        }
+        SecureEndpoint endpoint = new SecureEndpoint(port);
+        endpoint.setMode(variant == Variant.RSA_PER_MESSAGE
+                ? SecureEndpoint.Mode.RSA_PER_MESSAGE
+                : SecureEndpoint.Mode.SESSION_KEY);
+        endpoint.getPublicKey(); // key generation is not part of the measurement
+        return new Link() {
+            public void send(InetSocketAddress receiver, Serializable payload) {
+                endpoint.send(receiver, payload);
+            }
+
+            public Message blockingReceive() {
+                return endpoint.blockingReceive();
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------
+    //  Tanks
+    // ---------------------------------------------------------------------
+
+    private static final class Tank extends Thread {
+        final Link link;
+        final ByteBuffer buffer = ByteBuffer.allocate(NioEndpoint.DATAGRAM_SIZE);
+        InetSocketAddress right;
+        volatile boolean measuring;
+        private long[] samples = new long[1 << 16];
+        private int sampleCount;
+
+        Tank(String name, Link link) {
+            super(name);
+            this.link = link;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Message message = link.blockingReceive();
+                if (!(message.getPayload() instanceof byte[])) {
+                    continue;
+                }
+                ByteBuffer in = ByteBuffer.wrap((byte[]) message.getPayload());
+                long latency = System.nanoTime() - in.getLong();
+                if (measuring) {
+                    record(latency);
+                }
+                try {
+                    HandoffRequest handoff = (HandoffRequest) MessageTypes.codec().decode(in);
+                    handOff(handoff.getFish());
+                } catch (IOException e) {
+                    throw new RuntimeException("Corrupt handoff", e);
+                }
+            }
+        }
+
+        /* Called by this tank's thread only, apart from seeding the fish before it starts */
+        void handOff(FishModel fish) throws IOException {
+            buffer.clear();
+            buffer.putLong(System.nanoTime());
+            MessageTypes.codec().encode(new HandoffRequest(fish), buffer);
+            link.send(right, Arrays.copyOf(buffer.array(), buffer.position()));
+        }
+
+        private synchronized void record(long latency) {
+            if (sampleCount == samples.length) {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[sampleCount++] = latency;
+        }
+
+        synchronized long[] samples() {
+            return Arrays.copyOf(samples, sampleCount);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt1.common.Direction;
+import aqua.blatt1.common.FishModel;
+import aqua.blatt1.common.msgtypes.HandoffRequest;
+import aqua.blatt4.common.msgtypes.NeighborUpdate;
+import aqua.blatt4.common.msgtypes.SnapshotMarker;
+import aqua.blatt5.common.msgtypes.*;
+import aqua.blatt7.common.MessageDispatcher;
+import aqua.blatt7.common.msgtypes.RegisterResponse;
+import messaging.Message;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+/**
+ * Compares the old {@code instanceof} chain of {@code ClientReceiver} with the
+ * {@link MessageDispatcher} registry on a random message mix that hits every branch.
+ * Run with {@code java aqua.blatt7.bench.DispatchBenchmark}.
+ */
+public class DispatchBenchmark {
+
+    private static final int MIX_SIZE = 4096;
+
+    private long sink;
+
+    public static void main(String[] args) {
+        new DispatchBenchmark().run(new BenchmarkHarness(args.length > 0 ? args[0] : null));
+    }
+
+    private void run(BenchmarkHarness harness) {
+        InetSocketAddress sender = new InetSocketAddress("localhost", 4711);
+        Message[] types = {
+                new Message(new RegisterResponse("tank1", 10000), sender),
+                new Message(new HandoffRequest(new FishModel("fish1@tank1", 0, 0, Direction.LEFT)), sender),
+                new Message(new NeighborUpdate(Direction.LEFT, sender), sender),
+                new Message(new TokenMessage(), sender),
+                new Message(new SnapshotMarker(), sender),
+                new Message(new SnapshotTokenMessage("tank1", 3), sender),
+                new Message(new LocationRequest("fish1@tank1"), sender),
+                new Message(new NameResolutionResponse("fish1@tank1", sender), sender),
+                new Message(new LocationUpdate("fish1@tank1", sender), sender),
+        };
+        // random order, otherwise the branch predictor learns the chain's pattern
+        Random random = new Random(42);
+        Message[] mix = new Message[MIX_SIZE];
+        for (int i = 0; i < MIX_SIZE; i++) {
+            mix[i] = types[random.nextInt(types.length)];
+        }
+        MessageDispatcher dispatcher = new MessageDispatcher()
+                .on(RegisterResponse.class, (p, s) -> sink += 1)
+                .on(HandoffRequest.class, (p, s) -> sink += 2)
+                .on(NeighborUpdate.class, (p, s) -> sink += 3)
+                .on(TokenMessage.class, (p, s) -> sink += 4)
+                .on(SnapshotMarker.class, (p, s) -> sink += 5)
+                .on(SnapshotTokenMessage.class, (p, s) -> sink += 6)
+                .on(LocationRequest.class, (p, s) -> sink += 7)
+                .on(NameResolutionResponse.class, (p, s) -> sink += 8)
+                .on(LocationUpdate.class, (p, s) -> sink += 9);
+
+        // one call walks the whole mix, so harness overhead stays out of the ns/op figure
+        harness.run("dispatch.instanceofChain", MIX_SIZE, () -> chain(mix));
+        harness.run("dispatch.registry", MIX_SIZE, () -> registry(mix, dispatcher));
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private Object chain(Message[] mix) {
+        for (Message msg : mix) {
+            if (msg.getPayload() instanceof RegisterResponse) sink += 1;
+            else if (msg.getPayload() instanceof HandoffRequest) sink += 2;
+            else if (msg.getPayload() instanceof NeighborUpdate) sink += 3;
+            else if (msg.getPayload() instanceof TokenMessage) sink += 4;
+            else if (msg.getPayload() instanceof SnapshotMarker) sink += 5;
+            else if (msg.getPayload() instanceof SnapshotTokenMessage) sink += 6;
+            else if (msg.getPayload() instanceof LocationRequest) sink += 7;
+            else if (msg.getPayload() instanceof NameResolutionResponse) sink += 8;
+            else if (msg.getPayload() instanceof LocationUpdate) sink += 9;
+        }
+        return null;
+    }
+
+    private Object registry(Message[] mix, MessageDispatcher dispatcher) {
+        for (Message msg : mix) {
+            dispatcher.dispatch(msg);
+        }
+        return null;
+    }
+}
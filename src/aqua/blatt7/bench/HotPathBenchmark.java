@@ -0,0 +1,120 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt1.common.Direction;
+import aqua.blatt1.common.FishModel;
+import aqua.blatt1.common.msgtypes.HandoffRequest;
+import aqua.blatt7.common.MessageTypes;
+import aqua.blatt7.crypto.SecureEndpoint;
+import aqua.blatt7.transport.JavaSerializationCodec;
+import aqua.blatt7.transport.NioEndpoint;
+import aqua.blatt7.transport.PayloadCodec;
+import messaging.Endpoint;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixtures for the messaging hot path: encoding and decoding a {@link HandoffRequest} with
+ * every codec, {@link SecureEndpoint} encryption and decryption, and a send/receive round over
+ * loopback with each endpoint implementation and each {@link SecureEndpoint.Mode}. A new codec
+ * or transport is measured by adding it to {@link #codecs()} or next to the loopback fixtures.
+ * Run with {@code java aqua.blatt7.bench.HotPathBenchmark [name filter]}.
+ */
+public class HotPathBenchmark {
+
+    private static final int ENDPOINT_PORT_A = 4911;
+    private static final int ENDPOINT_PORT_B = 4912;
+    private static final int SECURE_BASE_PORT = 4913; // two ports per SecureEndpoint.Mode
+
+    private static final HandoffRequest HANDOFF =
+            new HandoffRequest(new FishModel("fish42@tank7", 37, 12, Direction.RIGHT));
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkHarness harness = new BenchmarkHarness(args.length > 0 ? args[0] : null);
+
+        for (Map.Entry<String, PayloadCodec> entry : codecs().entrySet()) {
+            codec(harness, entry.getKey(), entry.getValue());
+        }
+        secure(harness);
+        loopback(harness);
+        secureLoopback(harness);
+
+        System.out.println("(sink " + harness.getSink() + ")");
+        System.exit(0); // endpoints keep non-daemon threads
+    }
+
+    static Map<String, PayloadCodec> codecs() {
+        Map<String, PayloadCodec> codecs = new LinkedHashMap<>();
+        codecs.put("wire", MessageTypes.codec());
+        codecs.put("java", new JavaSerializationCodec());
+        return codecs;
+    }
+
+    private static void codec(BenchmarkHarness harness, String name, PayloadCodec codec) throws Exception {
+        ByteBuffer out = ByteBuffer.allocateDirect(NioEndpoint.DATAGRAM_SIZE);
+        harness.run("codec." + name + ".encodeHandoff", () -> {
+            out.clear();
+            codec.encode(HANDOFF, out);
+            return null;
+        });
+
+        ByteBuffer in = ByteBuffer.allocateDirect(NioEndpoint.DATAGRAM_SIZE);
+        codec.encode(HANDOFF, in);
+        in.flip();
+        harness.run("codec." + name + ".decodeHandoff", () -> codec.decode(in.rewind()));
+    }
+
+    private static void secure(BenchmarkHarness harness) {
+        SecureEndpoint alice = new SecureEndpoint();
+        SecureEndpoint bob = new SecureEndpoint();
+        harness.run("secure.encryptHandoff", () -> alice.encrypt(HANDOFF, bob.getPublicKey()));
+
+        byte[] sealed = alice.encrypt(HANDOFF, bob.getPublicKey());
+        harness.run("secure.decryptHandoff", () -> bob.decrypt(sealed));
+    }
+
+    private static void loopback(BenchmarkHarness harness) {
+        Endpoint a = new Endpoint(ENDPOINT_PORT_A);
+        Endpoint b = new Endpoint(ENDPOINT_PORT_B);
+        InetSocketAddress toB = new InetSocketAddress("localhost", ENDPOINT_PORT_B);
+        harness.run("loopback.endpoint.handoff", () -> {
+            a.send(toB, HANDOFF);
+            return b.blockingReceive();
+        });
+
+        NioEndpoint x = new NioEndpoint();
+        NioEndpoint y = new NioEndpoint();
+        InetSocketAddress toY = new InetSocketAddress("localhost", y.getLocalAddress().getPort());
+        harness.run("loopback.nio.handoff", () -> {
+            x.send(toY, HANDOFF);
+            return y.blockingReceive();
+        });
+    }
+
+    /* Handoffs are whitelisted, so their wire encoding is sent as byte[] to get it encrypted */
+    private static void secureLoopback(BenchmarkHarness harness) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(NioEndpoint.DATAGRAM_SIZE);
+        MessageTypes.codec().encode(HANDOFF, buffer);
+        byte[] handoff = Arrays.copyOf(buffer.array(), buffer.position());
+
+        int port = SECURE_BASE_PORT;
+        for (SecureEndpoint.Mode mode : SecureEndpoint.Mode.values()) {
+            SecureEndpoint a = new SecureEndpoint(port++);
+            SecureEndpoint b = new SecureEndpoint(port);
+            a.setMode(mode);
+            InetSocketAddress toB = new InetSocketAddress("localhost", port++);
+            Thread handshake = new Thread(() -> {
+                while (true) a.blockingReceive(); // a only receives handshake answers
+            }, "HotPathBenchmark-" + mode);
+            handshake.setDaemon(true);
+            handshake.start();
+            harness.run("loopback.secure." + mode.name().toLowerCase() + ".handoff", () -> {
+                a.send(toB, handoff);
+                return b.blockingReceive();
+            });
+        }
+    }
+}
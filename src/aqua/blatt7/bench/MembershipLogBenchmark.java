@@ -0,0 +1,102 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt7.broker.ClientCollection;
+import aqua.blatt7.broker.MembershipLog;
+import aqua.blatt7.broker.RingSnapshot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The broker's {@link MembershipLog}: appending a join plus a leave (what the membership
+ * writer does per tank), and restoring 10k and 100k tanks into a {@link ClientCollection} on
+ * startup – once from a log holding every join, once from a compacted checkpoint.
+ * Run with {@code java aqua.blatt7.bench.MembershipLogBenchmark [name filter]}.
+ */
+public class MembershipLogBenchmark {
+
+    private static final int[] SIZES = {10_000, 100_000};
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkHarness harness = new BenchmarkHarness(args.length > 0 ? args[0] : null);
+        Path dir = Files.createTempDirectory("membership");
+        InetSocketAddress[] addresses = addresses(SIZES[SIZES.length - 1]);
+        append(harness, dir.resolve("append.wal"), addresses[0]);
+        for (int size : SIZES) {
+            Path fromLog = dir.resolve("log-" + size + ".wal");
+            Path fromCheckpoint = dir.resolve("checkpoint-" + size + ".wal");
+            ClientCollection<InetSocketAddress> clients = fill(fromLog, size, addresses);
+            try (MembershipLog log = new MembershipLog(fromCheckpoint)) {
+                log.replay(replayInto(new ClientCollection<>()));
+                log.checkpoint(clients.snapshot(), size + 1);
+            }
+            String prefix = "restore." + size / 1000 + "k.";
+            harness.run(prefix + "log", () -> restore(fromLog));
+            harness.run(prefix + "checkpoint", () -> restore(fromCheckpoint));
+        }
+        System.out.println("(sink " + harness.getSink() + ")");
+    }
+
+    private static void append(BenchmarkHarness harness, Path file, InetSocketAddress address) throws IOException {
+        MembershipLog log = new MembershipLog(file);
+        log.replay(replayInto(new ClientCollection<>()));
+        int[] counter = {1};
+        harness.run("append.joinLeave", () -> {
+            if (log.needsCheckpoint()) {
+                log.checkpoint(RingSnapshot.empty(), counter[0]); // der Ring ist wieder leer
+            }
+            String id = "tank" + counter[0]++;
+            log.appendJoin(id, address, counter[0]);
+            log.appendLeave(id);
+            return log.size();
+        });
+        log.close();
+    }
+
+    private static ClientCollection<InetSocketAddress> fill(Path file, int size, InetSocketAddress[] addresses)
+            throws IOException {
+        ClientCollection<InetSocketAddress> clients = new ClientCollection<>();
+        try (MembershipLog log = new MembershipLog(file)) {
+            log.replay(replayInto(new ClientCollection<>()));
+            for (int i = 0; i < size; i++) {
+                log.appendJoin("tank" + (i + 1), addresses[i], i + 2);
+                clients.add("tank" + (i + 1), addresses[i]);
+            }
+        }
+        return clients;
+    }
+
+    private static int restore(Path file) throws IOException {
+        ClientCollection<InetSocketAddress> clients = new ClientCollection<>();
+        try (MembershipLog log = new MembershipLog(file)) {
+            return log.replay(replayInto(clients)) + clients.size();
+        }
+    }
+
+    private static MembershipLog.Replay replayInto(ClientCollection<InetSocketAddress> clients) {
+        return new MembershipLog.Replay() {
+            @Override
+            public void joined(String id, InetSocketAddress address) {
+                clients.add(id, address);
+            }
+
+            @Override
+            public void left(String id) {
+                clients.removeById(id);
+            }
+        };
+    }
+
+    private static InetSocketAddress[] addresses(int count) throws UnknownHostException {
+        InetSocketAddress[] addresses = new InetSocketAddress[count];
+        for (int i = 0; i < count; i++) {
+            byte[] ip = {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+            addresses[i] = new InetSocketAddress(InetAddress.getByAddress(ip), 4711);
+        }
+        return addresses;
+    }
+}
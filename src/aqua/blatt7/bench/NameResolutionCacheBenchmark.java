@@ -0,0 +1,68 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt5.common.msgtypes.NameResolutionRequest;
+import aqua.blatt5.common.msgtypes.NameResolutionResponse;
+import aqua.blatt7.bench.BrokerBenchmark.Client;
+import aqua.blatt7.broker.Broker;
+import aqua.blatt7.client.NameResolutionCache;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Name resolutions of a busy tank against an in-process {@link Broker}: fish arrive from a
+ * handful of home tanks, each looked up once directly at the broker and once through the
+ * client's {@link NameResolutionCache} (TTL = lease duration). A cache miss still costs the
+ * full broker round trip.
+ * Run with {@code java aqua.blatt7.bench.NameResolutionCacheBenchmark [name filter]}.
+ */
+public class NameResolutionCacheBenchmark {
+
+    private static final int PORT = 4851;
+    private static final int TANKS = 64;
+    private static final int HOME_TANKS = 8;
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkHarness harness = new BenchmarkHarness(args.length > 0 ? args[0] : null);
+        Broker broker = new Broker(PORT, Broker.ExecutionMode.VIRTUAL);
+        Thread server = new Thread(broker::serve, "broker");
+        server.setDaemon(true);
+        server.start();
+
+        InetSocketAddress brokerAddress = new InetSocketAddress("localhost", PORT);
+        Client[] tanks = new Client[TANKS];
+        for (int i = 0; i < TANKS; i++) {
+            tanks[i] = new Client(brokerAddress);
+            tanks[i].register();
+        }
+        String[] homes = new String[HOME_TANKS];
+        for (int i = 0; i < HOME_TANKS; i++) {
+            homes[i] = tanks[i].tankId;
+        }
+        Client client = tanks[TANKS - 1];
+
+        harness.run("resolve.broker", () -> client.resolve(randomHome(homes)));
+
+        // Ein Aufrufer, daher kann der Resolver die Antwort gleich selbst abwarten
+        NameResolutionCache[] cache = new NameResolutionCache[1];
+        cache[0] = new NameResolutionCache((tankId, requestId) -> {
+            client.endpoint.send(brokerAddress, new NameResolutionRequest(tankId, requestId));
+            NameResolutionResponse response = client.await(NameResolutionResponse.class, requestId);
+            if (response != null) {
+                cache[0].complete(requestId, response.getAddress());
+            }
+        });
+        InetSocketAddress[] home = new InetSocketAddress[1];
+        harness.run("resolve.cached", () -> {
+            cache[0].resolve(randomHome(homes), address -> home[0] = address);
+            return home[0];
+        });
+        System.out.println(cache[0]);
+        System.out.println("(sink " + harness.getSink() + ")");
+        System.exit(0); // brokers have no shutdown hook
+    }
+
+    private static String randomHome(String[] homes) {
+        return homes[ThreadLocalRandom.current().nextInt(homes.length)];
+    }
+}
@@ -0,0 +1,119 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt1.common.msgtypes.RegisterRequest;
+import aqua.blatt7.broker.Broker;
+import aqua.blatt7.broker.RingSnapshot;
+import aqua.blatt7.common.msgtypes.RegisterResponse;
+import aqua.blatt7.common.msgtypes.TopologyUpdate;
+import aqua.blatt7.transport.NioEndpoint;
+import messaging.Message;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test for a startup registration storm: a thousand tanks send their RegisterRequest to
+ * an in-process {@link Broker} at the same moment, once with the admission window switched off
+ * and once with the default. Measures the time until every tank holds its final neighbors
+ * (last TopologyUpdate that changed a view), the neighbor messages needed to get there and
+ * whether the views match the broker's ring.
+ * Run with {@code java aqua.blatt7.bench.RegistrationStormBenchmark [tanks]}.
+ */
+public class RegistrationStormBenchmark {
+
+    private static final int BASE_PORT = 4861;
+    private static final int DEFAULT_TANKS = 1000;
+    private static final long[] WINDOWS_MS = {0, 20};
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(500); // UDP: verlorene Anmeldungen
+    private static final long QUIET_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(8); // unter der Lease-Dauer
+
+    public static void main(String[] args) throws InterruptedException {
+        int tanks = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TANKS;
+        int port = BASE_PORT;
+        for (long window : WINDOWS_MS) {
+            run(tanks, window, port++);
+        }
+        System.exit(0); // brokers have no shutdown hook
+    }
+
+    private static void run(int count, long windowMs, int port) throws InterruptedException {
+        Broker broker = new Broker(port, Broker.ExecutionMode.VIRTUAL);
+        broker.setAdmissionWindow(windowMs, TimeUnit.MILLISECONDS);
+        Thread server = new Thread(broker::serve, "broker-" + port);
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress brokerAddress = new InetSocketAddress("localhost", port);
+
+        NioEndpoint[] endpoints = new NioEndpoint[count];
+        for (int i = 0; i < count; i++) {
+            endpoints[i] = new NioEndpoint();
+        }
+        String[] ids = new String[count];
+        long[] epochs = new long[count];
+        InetSocketAddress[] left = new InetSocketAddress[count];
+        InetSocketAddress[] right = new InetSocketAddress[count];
+        int registered = 0;
+        long updates = 0;
+
+        long start = System.nanoTime();
+        long lastChange = start;
+        long lastReceive = start;
+        long lastSend = start;
+        for (NioEndpoint endpoint : endpoints) {
+            endpoint.send(brokerAddress, new RegisterRequest());
+        }
+        while (true) {
+            long now = System.nanoTime();
+            // Antworten und Updates eines Batches kommen erst nacheinander an
+            if (registered == count && now - lastReceive > QUIET_NANOS || now - start > TIMEOUT_NANOS) {
+                break;
+            }
+            if (registered < count && now - lastSend > RETRY_NANOS) {
+                for (int i = 0; i < count; i++) {
+                    if (ids[i] == null) {
+                        endpoints[i].send(brokerAddress, new RegisterRequest());
+                    }
+                }
+                lastSend = now;
+            }
+            boolean idle = true;
+            for (int i = 0; i < count; i++) {
+                Message message;
+                while ((message = endpoints[i].nonBlockingReceive()) != null) {
+                    idle = false;
+                    lastReceive = System.nanoTime();
+                    if (message.getPayload() instanceof RegisterResponse response && ids[i] == null) {
+                        ids[i] = response.getId();
+                        registered++;
+                    } else if (message.getPayload() instanceof TopologyUpdate update) {
+                        updates++;
+                        if (update.getEpoch() > epochs[i]) {
+                            epochs[i] = update.getEpoch();
+                            left[i] = update.getLeft();
+                            right[i] = update.getRight();
+                            lastChange = System.nanoTime();
+                        }
+                    }
+                }
+            }
+            if (idle) {
+                Thread.sleep(1);
+            }
+        }
+
+        RingSnapshot<InetSocketAddress> ring = broker.getRing();
+        int wrong = 0;
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == null || !ring.getLeftNeighborOf(ids[i]).equals(left[i])
+                    || !ring.getRightNeighborOf(ids[i]).equals(right[i])) {
+                wrong++;
+            }
+        }
+        System.out.printf("window %2d ms, %d tanks: stable ring after %,8.1f ms, %,6d neighbor messages (%.2f per tank), %d registered, %d wrong views%n",
+                windowMs, count, (lastChange - start) / 1e6, updates, (double) updates / count, registered, wrong);
+        for (NioEndpoint endpoint : endpoints) {
+            endpoint.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt7.bench.BrokerBenchmark.Client;
+import aqua.blatt7.bench.BrokerBenchmark.Result;
+import aqua.blatt7.broker.Broker;
+import aqua.blatt7.broker.ShardRing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Aggregate registrations and name resolutions per second of an in-process cluster of 1, 2
+ * and 4 {@link Broker} shards ({@link ShardRing}). The clients of {@link BrokerBenchmark} are
+ * spread round robin over the shards; they resolve random tank ids, so with {@code n} shards
+ * {@code (n-1)/n} of the resolutions are forwarded to the owning shard.
+ * Every shard has its own receive loop, decrypt workers and membership writer, so how far the
+ * numbers scale depends on the cores available.
+ * Run with {@code java aqua.blatt7.bench.ShardedBrokerBenchmark [clients] [mode]}.
+ */
+public class ShardedBrokerBenchmark {
+
+    private static final int BASE_PORT = 4831;
+    private static final int DEFAULT_CLIENTS = 16; // more busy-polling clients than cores measure the clients
+    private static final int[] SHARD_COUNTS = {1, 2, 4};
+
+    public static void main(String[] args) throws InterruptedException {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        Broker.ExecutionMode mode = args.length > 1
+                ? Broker.ExecutionMode.valueOf(args[1].toUpperCase())
+                : Broker.ExecutionMode.VIRTUAL;
+        System.out.printf("%d cores, %s%n", Runtime.getRuntime().availableProcessors(), mode);
+        int port = BASE_PORT;
+        double baseline = 0;
+        for (int shardCount : SHARD_COUNTS) {
+            int[] ports = new int[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                ports[i] = port++;
+            }
+            double total = run(clientCount, mode, ports);
+            if (baseline == 0) {
+                baseline = total;
+            }
+            System.out.printf("          scaling vs 1 shard: %.2fx%n", total / baseline);
+        }
+        System.exit(0); // brokers have no shutdown hook
+    }
+
+    /* Returns registrations plus resolutions per second */
+    private static double run(int clientCount, Broker.ExecutionMode mode, int[] ports) throws InterruptedException {
+        ShardRing shards = ShardRing.ofPorts("localhost", ports);
+        for (int port : ports) {
+            Broker broker = new Broker(port, mode, null, shards);
+            Thread server = new Thread(broker::serve, "broker-" + port);
+            server.setDaemon(true);
+            server.start();
+        }
+
+        Client[] clients = new Client[clientCount];
+        String[] tankIds = new String[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new Client(shards.getShard(i % ports.length));
+            clients[i].register(); // every client gets a tank id first
+            tankIds[i] = clients[i].tankId;
+        }
+
+        Result registrations = BrokerBenchmark.measure(clients, Client::register);
+        Result resolutions = BrokerBenchmark.measure(clients, c ->
+                c.resolve(tankIds[ThreadLocalRandom.current().nextInt(tankIds.length)]));
+
+        System.out.printf("%d shard(s) %3d clients: %,10.0f registrations/s (%d timeouts), %,10.0f resolutions/s (%d timeouts)%n",
+                ports.length, clientCount, registrations.perSecond, registrations.timeouts,
+                resolutions.perSecond, resolutions.timeouts);
+        for (Client client : clients) {
+            client.endpoint.close();
+        }
+        return registrations.perSecond + resolutions.perSecond;
+    }
+}
@@ -0,0 +1,68 @@
+package aqua.blatt7.bench;
+
+import aqua.blatt1.common.Direction;
+import aqua.blatt1.common.FishModel;
+import aqua.blatt1.common.msgtypes.HandoffRequest;
+import aqua.blatt7.common.msgtypes.LocationUpdate;
+import aqua.blatt7.transport.NioEndpoint;
+import aqua.blatt7.transport.TransportMetrics;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * Sends payloads over loopback, plain and through the reliable channel, and checks that
+ * {@link TransportMetrics} counted each of them per type in both directions. Exits with
+ * status 1 and the offending type if a counter is off.
+ * Run with {@code java aqua.blatt7.bench.TransportMetricsCheck}.
+ */
+public class TransportMetricsCheck {
+
+    private static final int MESSAGES = 50;
+
+    private static int failures;
+
+    public static void main(String[] args) {
+        NioEndpoint a = new NioEndpoint();
+        NioEndpoint b = new NioEndpoint();
+        InetSocketAddress toB = new InetSocketAddress("localhost", b.getLocalAddress().getPort());
+        TransportMetrics metrics = TransportMetrics.global();
+        metrics.reset();
+        Thread acks = new Thread(() -> {
+            while (true) a.blockingReceive(); // a only receives acks
+        }, "TransportMetricsCheck-acks");
+        acks.setDaemon(true);
+        acks.start();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            a.sendReliable(toB, new HandoffRequest(new FishModel("fish" + i + "@tank1", i, i, Direction.LEFT)));
+        }
+        receive(b, MESSAGES);
+        check(metrics, HandoffRequest.class);
+
+        for (int i = 0; i < MESSAGES; i++) {
+            a.sendReliable(toB, new LocationUpdate("fish" + i + "@tank1", toB));
+        }
+        receive(b, MESSAGES);
+        check(metrics, LocationUpdate.class);
+
+        System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1); // endpoints keep non-daemon threads
+    }
+
+    private static void receive(NioEndpoint endpoint, int count) {
+        for (int i = 0; i < count; i++) {
+            endpoint.blockingReceive();
+        }
+    }
+
+    private static void check(TransportMetrics metrics, Class<? extends Serializable> type) {
+        long sent = metrics.getSent(type);
+        long received = metrics.getReceived(type);
+        System.out.printf("%-20s sent=%d received=%d%n", type.getSimpleName(), sent, received);
+        if (sent != MESSAGES || received != MESSAGES) {
+            System.out.println("  expected " + MESSAGES + " in both directions");
+            failures++;
+        }
+    }
+}
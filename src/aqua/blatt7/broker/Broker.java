@@ -1,79 +1,366 @@
 package aqua.blatt7.broker;
 
-import aqua.blatt1.common.Direction;
+import aqua.blatt1.common.Properties;
 import aqua.blatt1.common.msgtypes.DeregisterRequest;
 import aqua.blatt1.common.msgtypes.RegisterRequest;
-import aqua.blatt4.common.msgtypes.NeighborUpdate;
 import aqua.blatt5.common.msgtypes.NameResolutionRequest;
 import aqua.blatt5.common.msgtypes.NameResolutionResponse;
 import aqua.blatt5.common.msgtypes.TokenMessage;
+import aqua.blatt7.common.MessageDispatcher;
+import aqua.blatt7.common.msgtypes.ForwardedNameResolution;
 import aqua.blatt7.common.msgtypes.RegisterResponse;
+import aqua.blatt7.common.msgtypes.ShardBoundaryUpdate;
+import aqua.blatt7.common.msgtypes.TokenRequest;
+import aqua.blatt7.common.msgtypes.TopologyUpdate;
 import aqua.blatt7.crypto.SecureEndpoint;
+import aqua.blatt7.transport.TransportMetrics;
 import messaging.Endpoint;
 import messaging.Message;
 
 import javax.swing.*;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Broker {
+
+    /** How BrokerTasks are executed. */
+    public enum ExecutionMode {
+        /** Fixed pool of platform threads */
+        FIXED_POOL,
+        /** One virtual thread per task */
+        VIRTUAL
+    }
+
     private static final int PORT = 4711;
+    private static final Path KEY_FILE = Paths.get("broker.key"); // Schlüsselpaar überlebt Neustarts
+    private static final Path LOG_FILE = Paths.get("broker.wal"); // Mitgliedschaft ebenso
+    private static final int POOL_SIZE = 10;
+    private static final int MAX_CONCURRENT_TASKS = 1000; // darüber wartet die Empfangsschleife
+    private static final int DECRYPT_WORKERS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_MEMBERSHIP_BATCH = 1024;
+    private static final int ADMISSION_WINDOW_MS = 20; // Anmeldesturm: so lange weitersammeln
     private final SecureEndpoint endpoint;
+    // gehört allein dem Membership-Thread; alle anderen lesen den veröffentlichten Snapshot
     private final ClientCollection<InetSocketAddress> clients;
+    private final AtomicReference<RingSnapshot<InetSocketAddress>> ring;
+    private final BlockingQueue<Runnable> membershipChanges;
+    private final List<Send> outbox;
+    // Tanks, deren Nachbarn sich im laufenden Batch geändert haben
+    private final Set<InetSocketAddress> topologyChanged;
+    private long topologyEpoch;
+    // nur beim Token-Issuer eines Clusters, nur im Membership-Thread
+    private boolean tokenIssued;
+    private long ringEmptySince;
+    // Ring im Batch verändert? Reine Lease-Verlängerungen brauchen keinen neuen Snapshot
+    private boolean ringChanged;
+    private final Thread membershipWriter;
     private final AtomicInteger clientCounter;
     private final ExecutorService executor;
-    private final ReadWriteLock lock;
+    private final Semaphore taskPermits;
+    private final LeaseWheel<String> leases;
+    // nur im Shard-Betrieb gesetzt: Tank-Ids per Consistent Hashing auf mehrere Broker verteilt
+    private final ShardRing shards;
+    private final int shardIndex;
+    private final ShardView shardView;
+    private final MembershipLog membershipLog; // null: Mitgliedschaft nur im Speicher
+    // Mitgliedschaft: direkt in der Empfangsschleife einreihen, sonst überholen sich Tasks
+    private final MessageDispatcher membership;
+    private final MessageDispatcher dispatcher;
     private volatile boolean stopRequested;
+    private volatile long admissionWindowNanos = TimeUnit.MILLISECONDS.toNanos(ADMISSION_WINDOW_MS);
     private static final int LEASE_DURATION_MS = 10000; // z.B. 10 Sekunden
+    private static final int LEASE_TICK_MS = 250; // Leases laufen höchstens so viel zu spät ab
+    private static final int FLUSH_DELAY_MS = 2; // Nachrichten an denselben Client bündeln
+    private static final int METRICS_LOG_INTERVAL_S = 10;
+    private static final int BOUNDARY_RESEND_MS = 1000; // gleicht verlorene Shard-Updates aus
+    private static final int TOKEN_ISSUER = 0; // einziger Shard, der den Ring-Token erzeugt
+    // so lange muss der Ring leer aussehen, bis der Token als verschwunden gilt (alte Ränder)
+    private static final int TOKEN_RESET_MS = 3 * BOUNDARY_RESEND_MS;
 
     public Broker() {
-        this.endpoint = new SecureEndpoint(PORT);
+        this(PORT, ExecutionMode.FIXED_POOL, KEY_FILE, null, LOG_FILE);
+    }
+
+    public Broker(int port, ExecutionMode mode) {
+        this(port, mode, null);
+    }
+
+    public Broker(int port, ExecutionMode mode, Path keyFile) {
+        this(port, mode, keyFile, null);
+    }
+
+    /**
+     * Broker owning one shard of the tank-id space; {@code shards} must list this broker's
+     * address (on {@link Properties#HOST}) and be the same for every broker of the cluster.
+     * {@code null} for a standalone broker.
+     */
+    public Broker(int port, ExecutionMode mode, Path keyFile, ShardRing shards) {
+        this(port, mode, keyFile, shards, null);
+    }
+
+    /**
+     * Broker that logs its membership to {@code logFile} and, after a restart, resumes with
+     * the tanks, ids and ring it had; {@code null} to keep it in memory only.
+     */
+    public Broker(int port, ExecutionMode mode, Path keyFile, ShardRing shards, Path logFile) {
+        this.shards = shards;
+        this.shardIndex = shards == null ? -1 : shards.indexOf(new InetSocketAddress(Properties.HOST, port));
+        if (shards != null && shardIndex < 0) {
+            throw new IllegalArgumentException("Port " + port + " is not part of the shard ring");
+        }
+        this.shardView = shards == null ? null : new ShardView(shards, shardIndex);
+        this.endpoint = new SecureEndpoint(port, keyFile);
+        this.endpoint.setFlushDelay(FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        // Entschlüsseln parallel, die Empfangsschleife verteilt nur noch fertige Nachrichten
+        this.endpoint.startDecryptWorkers(DECRYPT_WORKERS);
         this.clients = new ClientCollection<>();
+        this.ring = new AtomicReference<>(RingSnapshot.empty());
+        this.membershipChanges = new LinkedBlockingQueue<>();
+        this.outbox = new ArrayList<>();
+        this.topologyChanged = new LinkedHashSet<>();
         this.clientCounter = new AtomicInteger(1);
-        this.executor = Executors.newFixedThreadPool(10);
-        this.lock = new ReentrantReadWriteLock();
+        this.executor = mode == ExecutionMode.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(POOL_SIZE);
+        this.taskPermits = new Semaphore(MAX_CONCURRENT_TASKS);
+        this.leases = new LeaseWheel<>(LEASE_TICK_MS, LEASE_DURATION_MS, System.currentTimeMillis());
+        this.membershipLog = logFile == null ? null : restore(logFile);
         this.stopRequested = false;
-        new java.util.Timer().schedule(new java.util.TimerTask() {
+        this.membership = new MessageDispatcher()
+                .on(RegisterRequest.class, (req, sender) -> membershipChanges.add(() -> register(sender)))
+                .on(DeregisterRequest.class, (req, sender) -> membershipChanges.add(() -> deregister(sender)))
+                .on(ShardBoundaryUpdate.class, (update, sender) -> {
+                    if (isShard(sender)) membershipChanges.add(() -> applyBoundary(update));
+                })
+                .on(TokenRequest.class, (req, sender) -> {
+                    if (isShard(sender)) membershipChanges.add(() -> grantToken(req.getTank()));
+                });
+        this.dispatcher = new MessageDispatcher()
+                .on(NameResolutionRequest.class, this::resolveName)
+                .on(ForwardedNameResolution.class, this::resolveForwarded);
+        this.membershipWriter = new Thread(this::applyMembershipChanges, "Broker-membership");
+        this.membershipWriter.setDaemon(true);
+        this.membershipWriter.start();
+        java.util.Timer timer = new java.util.Timer();
+        timer.schedule(new java.util.TimerTask() {
             @Override
             public void run() {
                 removeExpiredClients();
             }
-        }, 0, 2000); // Alle 2 Sekunden prüfen
+        }, LEASE_TICK_MS, LEASE_TICK_MS);
+        if (shards != null) {
+            timer.schedule(new java.util.TimerTask() {
+                @Override
+                public void run() {
+                    membershipChanges.add(() -> {
+                        publishBoundary(true);
+                        checkTokenGone();
+                    });
+                }
+            }, 0, BOUNDARY_RESEND_MS);
+        }
     }
 
     public static void main(String[] args) {
-        new Broker().broker();
+        // z.B. "java aqua.blatt7.broker.Broker virtual"
+        // oder als Cluster "java aqua.blatt7.broker.Broker virtual 4711,4712,4713 [eigener Port]"
+        ExecutionMode mode = args.length > 0
+                ? ExecutionMode.valueOf(args[0].toUpperCase())
+                : ExecutionMode.FIXED_POOL;
+        TransportMetrics.global().startLogging(METRICS_LOG_INTERVAL_S, TimeUnit.SECONDS);
+        if (args.length < 2) {
+            new Broker(PORT, mode, KEY_FILE, null, LOG_FILE).broker();
+            return;
+        }
+        int[] ports = Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray();
+        ShardRing shards = ShardRing.ofPorts(Properties.HOST, ports);
+        // ohne eigenen Port laufen alle Shards in diesem Prozess
+        int[] own = args.length > 2 ? new int[]{Integer.parseInt(args[2])} : ports;
+        for (int i = 0; i < own.length - 1; i++) {
+            Broker shard = new Broker(own[i], mode, Paths.get("broker-" + own[i] + ".key"), shards,
+                    Paths.get("broker-" + own[i] + ".wal"));
+            new Thread(shard::serve, "Broker-" + own[i]).start();
+        }
+        int last = own[own.length - 1];
+        new Broker(last, mode, Paths.get("broker-" + last + ".key"), shards,
+                Paths.get("broker-" + last + ".wal")).broker();
     }
 
-    private String findIdByAddress(InetSocketAddress addr) {
-        for (String id : clients.getIds()) {
-            if (clients.get(id).equals(addr)) return id;
+    /*
+     * Vor dem Start: Checkpoint und Log einspielen. Wiederhergestellte Tanks bekommen eine
+     * frische Lease – wer während des Neustarts verschwunden ist, läuft regulär ab.
+     */
+    private MembershipLog restore(Path logFile) {
+        long start = System.nanoTime();
+        try {
+            MembershipLog log = new MembershipLog(logFile);
+            int next = log.replay(new MembershipLog.Replay() {
+                @Override
+                public void joined(String id, InetSocketAddress address) {
+                    clients.add(id, address);
+                    if (shardView != null) {
+                        shardView.add(id, address);
+                    }
+                }
+
+                @Override
+                public void left(String id) {
+                    clients.removeById(id);
+                    if (shardView != null) {
+                        shardView.remove(id);
+                    }
+                }
+            });
+            clientCounter.set(next);
+            long now = System.currentTimeMillis();
+            for (String id : clients.getIds()) {
+                leases.renew(id, now + LEASE_DURATION_MS);
+            }
+            ring.set(clients.snapshot());
+            // nach einem Neustart mit Tanks kann noch ein Token kreisen
+            tokenIssued = clients.size() > 0;
+            if (clients.size() > 0) {
+                System.out.printf("[Broker] %d Clients aus %s wiederhergestellt (%.1f ms)%n",
+                        clients.size(), logFile, (System.nanoTime() - start) / 1e6);
+            }
+            return log;
+        } catch (IOException e) {
+            throw new RuntimeException("Restoring membership from " + logFile + " failed", e);
         }
-        return null;
     }
 
     private void removeExpiredClients() {
-        lock.writeLock().lock();
-        try {
-            long now = System.currentTimeMillis();
-            for (String id : new HashSet<>(clients.getIds())) {
-                if (now - clients.getTimestamp(id) > LEASE_DURATION_MS) {
-                    int index = clients.indexOf(id);
-                    InetSocketAddress left = clients.getLeftNeighorOf(index);
-                    InetSocketAddress right = clients.getRightNeighorOf(index);
-                    clients.removeById(id);
-                    endpoint.send(left, new NeighborUpdate(Direction.RIGHT, right));
-                    endpoint.send(right, new NeighborUpdate(Direction.LEFT, left));
-                    System.out.println("[Lease] Client " + id + " entfernt (Lease abgelaufen)");
+        // Das Rad liefert nur die fälligen Leases, meistens gar keine
+        List<String> due = leases.expire(System.currentTimeMillis());
+        if (!due.isEmpty()) {
+            membershipChanges.add(() -> removeExpired(due));
+        }
+    }
+
+    /*
+     * Einziger Schreiber der Mitgliedschaft: wendet alle anstehenden Änderungen als Batch an,
+     * veröffentlicht danach einen neuen Snapshot und verschickt erst dann die Antworten – wer
+     * von einer Änderung erfährt, findet sie auch im Snapshot.
+     */
+    private void applyMembershipChanges() {
+        List<Runnable> batch = new ArrayList<>();
+        while (!stopRequested) {
+            try {
+                collectBatch(batch);
+            } catch (InterruptedException e) {
+                break;
+            }
+            for (Runnable change : batch) {
+                try {
+                    change.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
                 }
             }
-        } finally {
-            lock.writeLock().unlock();
+            batch.clear();
+            if (ringChanged) {
+                ring.set(clients.snapshot()); // O(n), daher nur nach Ein- und Austritten
+                ringChanged = false;
+            }
+            if (shardView != null) {
+                publishBoundary(false);
+            }
+            publishTopology();
+            if (membershipLog != null && membershipLog.needsCheckpoint()) {
+                checkpoint();
+            }
+            for (Send send : outbox) {
+                endpoint.send(send.receiver, send.payload);
+            }
+            outbox.clear();
+            endpoint.flush();
+        }
+        if (membershipLog != null) {
+            Thread.interrupted(); // sonst schließt sich der FileChannel beim Schreiben
+            // nächster Start liest nur den Checkpoint
+            checkpoint();
+            try {
+                membershipLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Einzelne Änderungen gehen sofort durch. Liegt schon mehr als eine an (z.B. hunderte Tanks
+     * starten gleichzeitig), wird bis zum Ende des Aufnahmefensters weitergesammelt: alle kommen
+     * in denselben Batch, jeder Tank erhält nur seine endgültigen Nachbarn.
+     */
+    private void collectBatch(List<Runnable> batch) throws InterruptedException {
+        batch.add(membershipChanges.take());
+        membershipChanges.drainTo(batch, MAX_MEMBERSHIP_BATCH - 1);
+        if (batch.size() == 1) {
+            return;
+        }
+        long deadline = System.nanoTime() + admissionWindowNanos;
+        while (batch.size() < MAX_MEMBERSHIP_BATCH) {
+            Runnable next = membershipChanges.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return; // Fenster abgelaufen
+            }
+            batch.add(next);
+            membershipChanges.drainTo(batch, MAX_MEMBERSHIP_BATCH - batch.size());
+        }
+    }
+
+    /* Nur im Membership-Thread: Log zu einem Checkpoint des veröffentlichten Rings verdichten */
+    private void checkpoint() {
+        checkpoint(ring.get());
+    }
+
+    private void checkpoint(RingSnapshot<InetSocketAddress> members) {
+        try {
+            membershipLog.checkpoint(members, clientCounter.get());
+        } catch (IOException e) {
+            e.printStackTrace(); // Log wächst weiter, nächster Versuch nach dem nächsten Batch
+        }
+    }
+
+    /* Nur im Membership-Thread: Nachricht für nach der Veröffentlichung vormerken */
+    private void send(InetSocketAddress receiver, Serializable payload) {
+        outbox.add(new Send(receiver, payload));
+    }
+
+    private void removeExpired(List<String> due) {
+        long now = System.currentTimeMillis();
+        for (String id : due) {
+            if (clients.get(id) == null) {
+                continue; // inzwischen abgemeldet
+            }
+            long renewed = clients.getTimestamp(id);
+            if (now - renewed < LEASE_DURATION_MS) {
+                leases.renew(id, renewed + LEASE_DURATION_MS); // inzwischen verlängert
+                continue;
+            }
+            InetSocketAddress left = leftNeighborOf(id);
+            InetSocketAddress right = rightNeighborOf(id);
+            logLeave(id);
+            InetSocketAddress expired = clients.removeById(id);
+            ringChanged = true;
+            if (shardView != null) {
+                shardView.remove(id);
+            }
+            endpoint.forget(expired); // Krypto-Session freigeben
+            topologyChanged.add(left);
+            topologyChanged.add(right);
+            System.out.println("[Lease] Client " + id + " entfernt (Lease abgelaufen)");
         }
     }
 
@@ -84,11 +371,24 @@ public class Broker {
             stopBroker();
         }).start();
 
+        serve();
+    }
+
+    /** Receive loop without the GUI, e.g. for benchmarks. */
+    public void serve() {
         while (!stopRequested) {
             try {
                 Message message = endpoint.blockingReceive();
-                if (message != null) {
-                    executor.execute(new BrokerTask(message));
+                // Mitgliedschaftsänderungen in Ankunftsreihenfolge einreihen, nur der Rest geht an den Pool
+                if (message != null && !membership.dispatch(message)) {
+                    // begrenzt die Anzahl gleichzeitiger Tasks (auch die Warteschlange des Pools)
+                    taskPermits.acquire();
+                    try {
+                        executor.execute(new BrokerTask(message));
+                    } catch (RuntimeException e) {
+                        taskPermits.release();
+                        throw e;
+                    }
                 }
             } catch (Exception e) {
                 if (!stopRequested) e.printStackTrace();
@@ -99,86 +399,280 @@ public class Broker {
 
     private void stopBroker() {
         stopRequested = true;
+        endpoint.stopDecryptWorkers();
+        membershipWriter.interrupt();
         executor.shutdown();
     }
 
-    private class BrokerTask implements Runnable {
-        private final Message message;
+    private void register(InetSocketAddress sender) {
+        String id = clients.getIdOf(sender);
+        boolean isNewClient = id == null;
 
-        BrokerTask(Message message) {
-            this.message = message;
+        boolean firstClient = shardView == null ? clients.size() == 0 : shardView.isEmpty();
+
+        if (isNewClient) {
+            reserveLog(); // vor nextId(): ein voller Log kostet weder Id noch Antwort
+            id = nextId();
+            logJoin(id, sender);
+            clients.add(id, sender); // auch Zeitstempel wird hier aktualisiert
+            ringChanged = true;
+            if (shardView != null) {
+                shardView.add(id, sender);
+            }
+        } else {
+            // Client existiert bereits, nur Zeitstempel aktualisieren
+            clients.updateTimestamp(id);
         }
+        leases.renew(id, clients.getTimestamp(id) + LEASE_DURATION_MS);
 
-        @Override
-        public void run() {
-            Object payload = message.getPayload();
+        // Sende Antwort mit ID und Lease-Dauer
+        send(sender, new RegisterResponse(id, LEASE_DURATION_MS));
 
-            if (payload instanceof RegisterRequest) {
-                InetSocketAddress sender = message.getSender();
-                String id;
-                boolean isNewClient = clients.indexOf(sender) == -1;
+        if (isNewClient) {
+            // Nur ein Client im Ring → er selbst ist linker und rechter Nachbar
+            InetSocketAddress left = leftNeighborOf(id);
+            InetSocketAddress right = rightNeighborOf(id);
 
-                if (isNewClient) {
-                    id = "tank" + clientCounter.getAndIncrement();
-                    clients.add(id, sender); // auch Zeitstempel wird hier aktualisiert
+            // Nachbarn setzen – verschickt am Ende des Batches, je Tank ein TopologyUpdate
+            topologyChanged.add(sender);
+            topologyChanged.add(left);
+            topologyChanged.add(right);
+
+            if (firstClient) {
+                if (shards == null) {
+                    send(sender, new TokenMessage());
+                } else if (shardIndex == TOKEN_ISSUER) {
+                    grantToken(sender);
                 } else {
-                    // Client existiert bereits, nur Zeitstempel aktualisieren
-                    id = findIdByAddress(sender);
-                    clients.updateTimestamp(id);
+                    // unsere Sicht auf die anderen Shards kann veraltet sein → der Issuer entscheidet
+                    send(shards.getShard(TOKEN_ISSUER), new TokenRequest(sender));
                 }
+            }
 
-                // Sende Antwort mit ID und Lease-Dauer
-                endpoint.send(sender, new RegisterResponse(id, LEASE_DURATION_MS));
+            System.out.println("[Broker] Neuer Client registriert: " + id);
+        } else {
+            System.out.println("[Broker] Client " + id + " re-registriert");
+        }
+    }
 
-                if (isNewClient) {
-                    int newIndex = clients.indexOf(id);
-                    InetSocketAddress left, right;
+    private void deregister(InetSocketAddress sender) {
+        String id = clients.getIdOf(sender);
+        if (id == null) {
+            return; // nicht (mehr) registriert, z.B. Lease schon abgelaufen
+        }
 
-                    if (clients.size() == 1) {
-                        // Nur ein Client im Ring → er selbst ist linker und rechter Nachbar
-                        left = right = sender;
-                    } else {
-                        left = clients.getLeftNeighorOf(newIndex);
-                        right = clients.getRightNeighorOf(newIndex);
-                    }
+        InetSocketAddress left = leftNeighborOf(id);
+        InetSocketAddress right = rightNeighborOf(id);
 
-                    // Nachbarn setzen
-                    endpoint.send(sender, new NeighborUpdate(Direction.LEFT, left));
-                    endpoint.send(sender, new NeighborUpdate(Direction.RIGHT, right));
-                    endpoint.send(left, new NeighborUpdate(Direction.RIGHT, sender));
-                    endpoint.send(right, new NeighborUpdate(Direction.LEFT, sender));
+        logLeave(id);
+        clients.removeById(id);
+        ringChanged = true;
+        if (shardView != null) {
+            shardView.remove(id);
+        }
+        leases.cancel(id);
+        endpoint.forget(sender);
 
-                    if (clients.size() == 1) {
-                        endpoint.send(sender, new TokenMessage());
-                    }
+        topologyChanged.add(left);
+        topologyChanged.add(right);
+    }
 
-                    System.out.println("[Broker] Neuer Client registriert: " + id);
-                } else {
-                    System.out.println("[Broker] Client " + id + " re-registriert");
-                }
+    /*
+     * Vor jedem Eintrag: ist der Log zu voll, sofort verdichten – mitten im Batch, also vom
+     * aktuellen Stand statt vom veröffentlichten Snapshot. Scheitert auch das, gilt die
+     * Änderung trotzdem, nur eben ungeloggt (logJoin/logLeave lassen sie dann aus).
+     */
+    private void reserveLog() {
+        if (membershipLog != null && !membershipLog.hasRoom()) {
+            checkpoint(clients.snapshot());
+        }
+    }
+
+    /* Write-ahead: erst loggen, dann ändern */
+    private void logJoin(String id, InetSocketAddress address) {
+        reserveLog();
+        if (membershipLog != null && logHasRoom("Beitritt von " + id)) {
+            membershipLog.appendJoin(id, address, clientCounter.get());
+        }
+    }
+
+    private void logLeave(String id) {
+        reserveLog();
+        if (membershipLog != null && logHasRoom("Austritt von " + id)) {
+            membershipLog.appendLeave(id);
+        }
+    }
+
+    private boolean logHasRoom(String change) {
+        if (membershipLog.hasRoom()) {
+            return true;
+        }
+        System.err.println("[Broker] Membership-Log voll, " + change + " nicht geloggt");
+        return false;
+    }
+
+    /* Im Shard-Betrieb nur Ids, die diesem Shard gehören – so landen auch Verlängerungen hier */
+    private String nextId() {
+        while (true) {
+            String id = "tank" + clientCounter.getAndIncrement();
+            if (shards == null || shards.ownerOf(id) == shardIndex) {
+                return id;
             }
+        }
+    }
 
-// In DeregisterRequest Verarbeitung:
-            else if (payload instanceof DeregisterRequest) {
-                lock.writeLock().lock();
-                try {
-                    int index = clients.indexOf(message.getSender());
+    private InetSocketAddress leftNeighborOf(String id) {
+        return shardView == null ? clients.getLeftNeighorOf(id) : shardView.leftOf(id);
+    }
 
-                    InetSocketAddress left = clients.getLeftNeighorOf(index);
-                    InetSocketAddress right = clients.getRightNeighorOf(index);
+    private InetSocketAddress rightNeighborOf(String id) {
+        return shardView == null ? clients.getRightNeighorOf(id) : shardView.rightOf(id);
+    }
 
-                    clients.remove(index);
+    /*
+     * Nur im Membership-Thread, nach dem Batch: jedem betroffenen Tank einmal beide Nachbarn
+     * mit einer neuen Epoche schicken. Tanks anderer Shards informiert deren Broker, sobald er
+     * unsere neuen Randtanks kennt.
+     */
+    private void publishTopology() {
+        if (topologyChanged.isEmpty()) {
+            return;
+        }
+        // an die Uhr gebunden (µs), damit die Epoche auch nach einem Neustart weiter wächst
+        topologyEpoch = Math.max(topologyEpoch + 1, System.currentTimeMillis() * 1000);
+        for (InetSocketAddress tank : topologyChanged) {
+            String id = clients.getIdOf(tank);
+            if (id != null) {
+                send(tank, new TopologyUpdate(topologyEpoch, leftNeighborOf(id), rightNeighborOf(id)));
+            }
+        }
+        topologyChanged.clear();
+    }
 
-                    endpoint.send(left, new NeighborUpdate(Direction.RIGHT, right));
-                    endpoint.send(right, new NeighborUpdate(Direction.LEFT, left));
-                } finally {
-                    lock.writeLock().unlock();
-                }
+    /* Nur im Membership-Thread: eigene Randtanks an die anderen Shards melden */
+    private void publishBoundary(boolean force) {
+        ShardBoundaryUpdate update = shardView.boundaryUpdate(force);
+        if (update == null) {
+            return;
+        }
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (shard != shardIndex) {
+                send(shards.getShard(shard), update);
+            }
+        }
+    }
+
+    /* Nur im Membership-Thread: neue Ränder eines anderen Shards übernehmen */
+    private void applyBoundary(ShardBoundaryUpdate update) {
+        // nur eigene Randtanks können Nachbarn im anderen Shard haben
+        List<String> edges = shardView.boundaryIds();
+        InetSocketAddress[] before = new InetSocketAddress[2 * edges.size()];
+        for (int i = 0; i < edges.size(); i++) {
+            before[2 * i] = shardView.leftOf(edges.get(i));
+            before[2 * i + 1] = shardView.rightOf(edges.get(i));
+        }
+        if (!shardView.apply(update)) {
+            return; // veraltet
+        }
+        for (int i = 0; i < edges.size(); i++) {
+            if (!shardView.leftOf(edges.get(i)).equals(before[2 * i])
+                    || !shardView.rightOf(edges.get(i)).equals(before[2 * i + 1])) {
+                topologyChanged.add(clients.get(edges.get(i)));
             }
-            else if (payload instanceof NameResolutionRequest) {
-                NameResolutionRequest req = (NameResolutionRequest) payload;
-                InetSocketAddress address = clients.get(req.getTankId());
-                endpoint.send(message.getSender(), new NameResolutionResponse(req.getRequestId(), address));
+        }
+    }
+
+    /* Nur beim Token-Issuer, im Membership-Thread: höchstens ein Token pro Ring */
+    private void grantToken(InetSocketAddress tank) {
+        if (!tokenIssued) {
+            tokenIssued = true;
+            send(tank, new TokenMessage());
+        }
+    }
+
+    /*
+     * Nur beim Token-Issuer, im Membership-Thread: ist der ganze Ring lange genug leer, ist der
+     * Token mit dem letzten Tank verschwunden und der nächste erste Tank bekommt einen neuen.
+     */
+    private void checkTokenGone() {
+        if (shardIndex != TOKEN_ISSUER || !tokenIssued) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!shardView.isEmpty()) {
+            ringEmptySince = 0;
+        } else if (ringEmptySince == 0) {
+            ringEmptySince = now;
+        } else if (now - ringEmptySince >= TOKEN_RESET_MS) {
+            tokenIssued = false;
+            ringEmptySince = 0;
+        }
+    }
+
+    private boolean isShard(InetSocketAddress sender) {
+        return shards != null && shards.indexOf(sender) >= 0;
+    }
+
+    private void resolveName(NameResolutionRequest req, InetSocketAddress sender) {
+        if (shards != null) {
+            int owner = shards.ownerOf(req.getTankId());
+            if (owner != shardIndex) {
+                // der zuständige Broker antwortet dem Anfragenden direkt
+                endpoint.send(shards.getShard(owner),
+                        new ForwardedNameResolution(req.getTankId(), req.getRequestId(), sender));
+                return;
+            }
+        }
+        // wartefrei: liest nur den zuletzt veröffentlichten Snapshot
+        InetSocketAddress address = ring.get().get(req.getTankId());
+        endpoint.send(sender, new NameResolutionResponse(req.getRequestId(), address));
+    }
+
+    private void resolveForwarded(ForwardedNameResolution req, InetSocketAddress sender) {
+        if (isShard(sender)) {
+            InetSocketAddress address = ring.get().get(req.getTankId());
+            endpoint.send(req.getRequester(), new NameResolutionResponse(req.getRequestId(), address));
+        }
+    }
+
+    /**
+     * How long the membership writer keeps collecting once several changes are waiting at
+     * the same time; 0 applies whatever is queued right away.
+     */
+    public void setAdmissionWindow(long window, TimeUnit unit) {
+        this.admissionWindowNanos = unit.toNanos(window);
+    }
+
+    /** Currently published membership. */
+    public RingSnapshot<InetSocketAddress> getRing() {
+        return ring.get();
+    }
+
+    private static final class Send {
+        final InetSocketAddress receiver;
+        final Serializable payload;
+
+        Send(InetSocketAddress receiver, Serializable payload) {
+            this.receiver = receiver;
+            this.payload = payload;
+        }
+    }
+
+    private class BrokerTask implements Runnable {
+        private final Message message;
+
+        BrokerTask(Message message) {
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            try {
+                dispatcher.dispatch(message);
+                // alle Antworten dieser Nachricht gebündelt rausschicken
+                endpoint.flush();
+            } finally {
+                taskPermits.release();
             }
         }
     }
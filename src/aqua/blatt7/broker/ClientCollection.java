@@ -3,6 +3,10 @@ package aqua.blatt7.broker;
 import java.util.*;
 
 /*
+ * Ring of registered clients in registration order. The ring is a doubly linked list; hash
+ * indexes from id and from client address point straight at a node, so lookups, neighbor
+ * queries, insertion (at the end of the ring) and removal are all O(1).
+ *
  * This class is not thread-safe and hence must be used in a thread-safe way, e.g. thread confined or
  * externally synchronized.
  */
@@ -10,7 +14,9 @@ public class ClientCollection<T> {
 
     private class Client {
         final String id;
-        final T client;
+        T client;
+        long timestamp;
+        Client left, right;
 
         Client(String id, T client) {
             this.id = id;
@@ -18,94 +24,126 @@ public class ClientCollection<T> {
         }
     }
 
-    private final List<Client> clients;
-    private final Map<String, Long> timestamps;
+    private final Map<String, Client> byId;
+    private final Map<T, Client> byClient;
+    /* First registered client; its left neighbor is the last one */
+    private Client head;
 
     public ClientCollection() {
-        clients = new ArrayList<>();
-        timestamps = new HashMap<>();
+        byId = new HashMap<>();
+        byClient = new HashMap<>();
     }
 
     public ClientCollection<T> add(String id, T client) {
-        int index = indexOf(id);
-        if (index == -1) {
-            clients.add(new Client(id, client));
+        Client node = byId.get(id);
+        if (node == null) {
+            node = new Client(id, client);
+            byId.put(id, node);
+            link(node);
         } else {
-            clients.set(index, new Client(id, client)); // aktualisiere Adresse
+            byClient.remove(node.client, node);
+            node.client = client; // aktualisiere Adresse
         }
-        timestamps.put(id, System.currentTimeMillis());
+        byClient.put(client, node);
+        node.timestamp = System.currentTimeMillis();
         return this;
     }
 
-    public ClientCollection<T> remove(int index) {
-        String id = clients.get(index).id;
-        timestamps.remove(id);
-        clients.remove(index);
-        return this;
-    }
-
-    public void removeById(String id) {
-        int index = indexOf(id);
-        if (index != -1) {
-            remove(index);
+    /** Removes the client and returns its address, or {@code null} if the id is unknown. */
+    public T removeById(String id) {
+        Client node = byId.remove(id);
+        if (node == null) {
+            return null;
         }
+        byClient.remove(node.client, node);
+        unlink(node);
+        return node.client;
     }
 
-    public int indexOf(String id) {
-        for (int i = 0; i < clients.size(); i++)
-            if (clients.get(i).id.equals(id))
-                return i;
-        return -1;
+    /* Appends at the end of the ring, i.e. between the last client and head */
+    private void link(Client node) {
+        if (head == null) {
+            node.left = node.right = node;
+            head = node;
+        } else {
+            node.left = head.left;
+            node.right = head;
+            head.left.right = node;
+            head.left = node;
+        }
     }
 
-    public int indexOf(T client) {
-        for (int i = 0; i < clients.size(); i++)
-            if (clients.get(i).client.equals(client))
-                return i;
-        return -1;
+    private void unlink(Client node) {
+        if (node.right == node) {
+            head = null;
+        } else {
+            node.left.right = node.right;
+            node.right.left = node.left;
+            if (head == node) {
+                head = node.right;
+            }
+        }
+        node.left = node.right = null;
     }
 
-    public T getClient(int index) {
-        return clients.get(index).client;
+    /** Id the client is registered under, {@code null} if it is not registered. */
+    public String getIdOf(T client) {
+        Client node = byClient.get(client);
+        return node == null ? null : node.id;
     }
 
     public T get(String id) {
-        int index = indexOf(id);
-        if (index != -1) {
-            return getClient(index);
-        }
-        return null;
+        Client node = byId.get(id);
+        return node == null ? null : node.client;
     }
 
     public int size() {
-        return clients.size();
+        return byId.size();
     }
 
-    public T getLeftNeighorOf(int index) {
-        return index == 0 ? clients.get(clients.size() - 1).client : clients.get(index - 1).client;
+    /** Left neighbor in the ring; the client itself if it is alone, {@code null} for an unknown id. */
+    public T getLeftNeighorOf(String id) {
+        Client node = byId.get(id);
+        return node == null ? null : node.left.client;
     }
 
-    public T getRightNeighorOf(int index) {
-        return index < clients.size() - 1 ? clients.get(index + 1).client : clients.get(0).client;
+    /** Right neighbor in the ring; the client itself if it is alone, {@code null} for an unknown id. */
+    public T getRightNeighorOf(String id) {
+        Client node = byId.get(id);
+        return node == null ? null : node.right.client;
     }
 
+    /** Read-only view of all ids; copy it before removing clients while iterating. */
     public Set<String> getIds() {
-        Set<String> ids = new HashSet<>();
-        for (Client client : clients) {
-            ids.add(client.id);
-        }
-        return ids;
+        return Collections.unmodifiableSet(byId.keySet());
     }
 
     public long getTimestamp(String id) {
-        return timestamps.getOrDefault(id, 0L);
+        Client node = byId.get(id);
+        return node == null ? 0L : node.timestamp;
     }
 
     public void updateTimestamp(String id) {
-        timestamps.put(id, System.currentTimeMillis());
+        Client node = byId.get(id);
+        if (node != null) {
+            node.timestamp = System.currentTimeMillis();
+        }
     }
 
-    public boolean containsId(T clientAddress) {
-        return indexOf(clientAddress) != -1;
+    /** Whether a client is registered under this address. O(1). */
+    public boolean contains(T clientAddress) {
+        return byClient.containsKey(clientAddress);
+    }
+
+    /** Immutable copy in ring order, starting with the first registered client. O(n). */
+    public RingSnapshot<T> snapshot() {
+        String[] ids = new String[byId.size()];
+        Object[] clients = new Object[ids.length];
+        Client node = head;
+        for (int i = 0; i < ids.length; i++, node = node.right) {
+            ids[i] = node.id;
+            clients[i] = node.client;
+        }
+        return new RingSnapshot<>(ids, clients);
     }
-}
\ No newline at end of file
+}
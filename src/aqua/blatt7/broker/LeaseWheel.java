@@ -0,0 +1,92 @@
+package aqua.blatt7.broker;
+
+import java.util.*;
+
+/*
+ * Hashed timing wheel for lease deadlines. Each slot holds the keys whose deadline falls into
+ * one tick; renewing moves a key to its new slot and cancelling removes it, both O(1).
+ * expire(now) only visits the slots of the ticks that passed since the last call, so its cost
+ * is proportional to the number of expired keys, not to the number of leases.
+ *
+ * Deadlines further away than the wheel spans stay in their slot for another round. Methods
+ * are synchronized; the wheel's lock is independent of the broker's membership lock.
+ */
+class LeaseWheel<K> {
+
+    private static final class Lease {
+        long deadline;
+        int slot;
+    }
+
+    private final long tickMillis;
+    private final List<Set<K>> slots;
+    private final Map<K, Lease> leases = new HashMap<>();
+    /* Next tick whose slot has not been expired yet */
+    private long nextTick;
+
+    /**
+     * @param tickMillis resolution; keys expire at most one tick late
+     * @param span       longest lease the wheel covers without extra rounds
+     */
+    LeaseWheel(long tickMillis, long span, long now) {
+        this.tickMillis = tickMillis;
+        int slotCount = (int) (span / tickMillis) + 2;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new HashSet<>());
+        }
+        this.nextTick = now / tickMillis;
+    }
+
+    /** Sets the key's deadline, adding the key if it has none. */
+    synchronized void renew(K key, long deadline) {
+        Lease lease = leases.get(key);
+        if (lease == null) {
+            lease = new Lease();
+            leases.put(key, lease);
+        } else {
+            slots.get(lease.slot).remove(key);
+        }
+        lease.deadline = deadline;
+        lease.slot = slotOf(deadline);
+        slots.get(lease.slot).add(key);
+    }
+
+    synchronized void cancel(K key) {
+        Lease lease = leases.remove(key);
+        if (lease != null) {
+            slots.get(lease.slot).remove(key);
+        }
+    }
+
+    /** Removes and returns all keys whose deadline is not after {@code now}. */
+    synchronized List<K> expire(long now) {
+        List<K> expired = new ArrayList<>();
+        long lastTick = now / tickMillis;
+        // after a long pause one round over all slots is enough
+        long firstTick = Math.max(nextTick, lastTick - slots.size() + 1);
+        for (long tick = firstTick; tick <= lastTick; tick++) {
+            Iterator<K> it = slots.get((int) (tick % slots.size())).iterator();
+            while (it.hasNext()) {
+                K key = it.next();
+                if (leases.get(key).deadline <= now) {
+                    it.remove();
+                    leases.remove(key);
+                    expired.add(key);
+                }
+            }
+        }
+        nextTick = lastTick + 1;
+        return expired;
+    }
+
+    synchronized int size() {
+        return leases.size();
+    }
+
+    /* Slot of the tick in which the deadline passes (rounded up), at the earliest the next one */
+    private int slotOf(long deadline) {
+        long tick = Math.max((deadline + tickMillis - 1) / tickMillis, nextTick);
+        return (int) (tick % slots.size());
+    }
+}
@@ -0,0 +1,270 @@
+package aqua.blatt7.broker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.zip.CRC32C;
+
+import static aqua.blatt7.transport.WireCodec.*;
+
+/**
+ * Write-ahead log of the broker's membership, so a restarted broker gets its ring, the tank
+ * ids and the id counter back instead of waiting for every tank to register again.
+ * <p>
+ * Joins and leaves (deregistration or expired lease) are appended to a memory-mapped file;
+ * lease renewals are not logged, restored tanks simply get a fresh lease. Once the log grows
+ * past a threshold the whole membership is written to a compacted checkpoint next to it and
+ * the log starts over. Restoring reads the checkpoint and replays the log after it.
+ * <p>
+ * Log: {@code [magic][version][generation]} followed by records {@code [length][CRC32C]
+ * [payload]}. The CRC covers the generation as well, so records left over from before the
+ * last checkpoint are never replayed; replay stops at the first record that does not check
+ * out, e.g. one torn by a crash. Checkpoint: {@code [magic][version][generation][next id]
+ * [count][id, address]...[CRC32C]}, in ring order, replaced atomically.
+ * <p>
+ * The mapped pages survive a crash of the broker process; {@link #checkpoint checkpoints} and
+ * {@link #close} also force them to disk. Not thread-safe – the broker's membership writer
+ * is its only user.
+ */
+public final class MembershipLog implements Closeable {
+
+    /** Receives the restored membership in ring order. */
+    public interface Replay {
+        void joined(String id, InetSocketAddress address);
+
+        void left(String id);
+    }
+
+    public static final int DEFAULT_CAPACITY = 8 << 20;
+
+    private static final int LOG_MAGIC = 0x41514C47;        // "AQLG"
+    private static final int CHECKPOINT_MAGIC = 0x41514350; // "AQCP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD = 1024;
+    private static final byte JOIN = 1;
+    private static final byte LEAVE = 2;
+
+    private final Path file;
+    private final Path checkpointFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer log;
+    private final ByteBuffer record = ByteBuffer.allocate(MAX_RECORD);
+    private final CRC32C crc = new CRC32C();
+    private final int checkpointThreshold;
+    private long generation;
+    /* Nur während replay(): höchster gesehener Zählerstand */
+    private int nextCounter;
+
+    /** Opens (or creates) the log; call {@link #replay} before appending. */
+    public MembershipLog(Path file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    public MembershipLog(Path file, int capacity) throws IOException {
+        this.file = file;
+        this.checkpointFile = file.resolveSibling(file.getFileName() + ".checkpoint");
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        // Luft für einen ganzen Batch, bevor das Log voll ist
+        this.checkpointThreshold = capacity / 2;
+    }
+
+    /**
+     * Replays checkpoint and log into {@code target} and returns the id counter to continue
+     * with (1 for a new log). Afterwards the log is positioned for appending.
+     */
+    public int replay(Replay target) throws IOException {
+        generation = 0;
+        nextCounter = 1;
+        if (Files.exists(checkpointFile)) {
+            readCheckpoint(target);
+        }
+        log.clear();
+        boolean current = log.getInt() == LOG_MAGIC && log.getInt() == FORMAT_VERSION
+                && log.getLong() == generation;
+        if (!current) {
+            // neues Log oder schon im Checkpoint enthalten
+            startGeneration(generation);
+            return nextCounter;
+        }
+        while (log.remaining() >= RECORD_HEADER) {
+            int start = log.position();
+            int length = log.getInt();
+            int checksum = log.getInt();
+            if (length <= 0 || length > MAX_RECORD || length > log.remaining()) {
+                log.position(start);
+                break;
+            }
+            ByteBuffer payload = log.slice(log.position(), length);
+            if (checksum != checksum(payload)) {
+                log.position(start); // abgerissener oder alter Eintrag: hier geht es weiter
+                break;
+            }
+            log.position(log.position() + length);
+            apply(payload, target);
+        }
+        return nextCounter;
+    }
+
+    public void appendJoin(String id, InetSocketAddress address, int nextCounter) {
+        record.clear();
+        record.put(JOIN);
+        putString(record, id);
+        putAddress(record, address);
+        record.putInt(nextCounter);
+        append();
+    }
+
+    public void appendLeave(String id) {
+        record.clear();
+        record.put(LEAVE);
+        putString(record, id);
+        append();
+    }
+
+    /** False once the next record might not fit any more; a {@link #checkpoint} makes room. */
+    public boolean hasRoom() {
+        return log.remaining() >= RECORD_HEADER + MAX_RECORD + RECORD_HEADER;
+    }
+
+    /** True once the log is large enough to be compacted into a checkpoint. */
+    public boolean needsCheckpoint() {
+        return log.position() > checkpointThreshold;
+    }
+
+    /**
+     * Writes the complete membership as a new checkpoint and starts an empty log. A crash in
+     * between is harmless: a log whose generation is older than the checkpoint is skipped.
+     */
+    public void checkpoint(RingSnapshot<InetSocketAddress> members, int nextCounter) throws IOException {
+        long next = generation + 1;
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(),
+                checkpointFile.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                CRC32C sum = new CRC32C();
+                buffer.putInt(CHECKPOINT_MAGIC).putInt(FORMAT_VERSION).putLong(next)
+                        .putInt(nextCounter).putInt(members.size());
+                for (String id : members.getIds()) {
+                    if (buffer.remaining() < MAX_RECORD) {
+                        drain(buffer, out, sum);
+                    }
+                    putString(buffer, id);
+                    putAddress(buffer, members.get(id));
+                }
+                drain(buffer, out, sum);
+                buffer.putInt((int) sum.getValue());
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        startGeneration(next);
+    }
+
+    /** Bytes appended since the last checkpoint. */
+    public int size() {
+        return log.position() - HEADER_SIZE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.force();
+        channel.close();
+    }
+
+    private void append() {
+        int length = record.position();
+        if (log.remaining() < RECORD_HEADER + length + RECORD_HEADER) {
+            throw new IllegalStateException("Membership log full, checkpoint overdue");
+        }
+        record.flip();
+        int start = log.position();
+        log.putInt(0); // Länge zuletzt: ein halb geschriebener Eintrag bleibt ungültig
+        log.putInt(checksum(record));
+        log.put(record);
+        log.putInt(log.position(), 0); // Ende markieren, falls dahinter Reste liegen
+        log.putInt(start, length);
+    }
+
+    private void apply(ByteBuffer payload, Replay target) throws IOException {
+        try {
+            byte type = payload.get();
+            String id = getString(payload);
+            if (type == JOIN) {
+                InetSocketAddress address = getAddress(payload);
+                nextCounter = Math.max(nextCounter, payload.getInt());
+                target.joined(id, address);
+            } else if (type == LEAVE) {
+                target.left(id);
+            } else {
+                throw new IOException("Unknown membership record type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated membership record", e);
+        }
+    }
+
+    private void readCheckpoint(Replay target) throws IOException {
+        try (FileChannel in = FileChannel.open(checkpointFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (buffer.limit() < 28) {
+                throw new IOException("Truncated membership checkpoint " + checkpointFile);
+            }
+            CRC32C sum = new CRC32C();
+            sum.update(buffer.slice(0, buffer.limit() - 4));
+            if (buffer.getInt(buffer.limit() - 4) != (int) sum.getValue()
+                    || buffer.getInt() != CHECKPOINT_MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Corrupt membership checkpoint " + checkpointFile);
+            }
+            generation = buffer.getLong();
+            nextCounter = buffer.getInt();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                target.joined(getString(buffer), getAddress(buffer));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt membership checkpoint " + checkpointFile, e);
+        }
+    }
+
+    private void startGeneration(long generation) {
+        this.generation = generation;
+        log.clear();
+        log.putInt(LOG_MAGIC).putInt(FORMAT_VERSION).putLong(generation);
+        log.putInt(log.position(), 0);
+        log.force();
+    }
+
+    private int checksum(ByteBuffer payload) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (generation >>> shift));
+        }
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out, CRC32C sum) throws IOException {
+        buffer.flip();
+        sum.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,73 @@
+package aqua.blatt7.broker;
+
+import java.util.*;
+
+/*
+ * Immutable copy of the client ring at one point in time. The broker's membership writer
+ * publishes a new snapshot after every batch with a join or leave; any number of threads
+ * read the current one without locking (name resolution, neighbor queries). Lookups are O(1).
+ */
+public final class RingSnapshot<T> {
+
+    private static final RingSnapshot<?> EMPTY = new RingSnapshot<>(new String[0], new Object[0]);
+
+    private final String[] ids;
+    private final Object[] clients;
+    private final Map<String, Integer> indexById;
+    private final Map<T, Integer> indexByClient;
+
+    /* Arrays in ring order, owned by the snapshot from now on */
+    @SuppressWarnings("unchecked")
+    RingSnapshot(String[] ids, Object[] clients) {
+        this.ids = ids;
+        this.clients = clients;
+        this.indexById = new HashMap<>(ids.length * 4 / 3 + 1);
+        this.indexByClient = new HashMap<>(ids.length * 4 / 3 + 1);
+        for (int i = 0; i < ids.length; i++) {
+            indexById.put(ids[i], i);
+            indexByClient.put((T) clients[i], i);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> RingSnapshot<T> empty() {
+        return (RingSnapshot<T>) EMPTY;
+    }
+
+    public T get(String id) {
+        Integer index = indexById.get(id);
+        return index == null ? null : client(index);
+    }
+
+    /** Id the client is registered under, {@code null} if it is not registered. */
+    public String getIdOf(T client) {
+        Integer index = indexByClient.get(client);
+        return index == null ? null : ids[index];
+    }
+
+    /** Left neighbor in the ring; the client itself if it is alone, {@code null} for an unknown id. */
+    public T getLeftNeighborOf(String id) {
+        Integer index = indexById.get(id);
+        return index == null ? null : client(index == 0 ? ids.length - 1 : index - 1);
+    }
+
+    /** Right neighbor in the ring; the client itself if it is alone, {@code null} for an unknown id. */
+    public T getRightNeighborOf(String id) {
+        Integer index = indexById.get(id);
+        return index == null ? null : client(index == ids.length - 1 ? 0 : index + 1);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /** Ids in ring order. */
+    public List<String> getIds() {
+        return Collections.unmodifiableList(Arrays.asList(ids));
+    }
+
+    @SuppressWarnings("unchecked")
+    private T client(int index) {
+        return (T) clients[index];
+    }
+}
@@ -0,0 +1,122 @@
+package aqua.blatt7.broker;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/*
+ * Consistent hashing of tank ids onto a fixed set of broker shards. Every shard gets a number
+ * of virtual nodes on a 64-bit hash ring; an id belongs to the shard of the first virtual node
+ * at or after its hash. All brokers of a cluster must be built from the same shard list.
+ *
+ * The tank ring of a sharded cluster is ordered by id hash. The positions of the virtual nodes
+ * cut it into segments – each one owned by exactly one shard, the segment below the first
+ * position and the one above the last both belong to the first node's shard – and a broker
+ * only needs the first and last tank of the other shards' segments to find the neighbors of
+ * its own tanks.
+ */
+public final class ShardRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+    private final InetSocketAddress[] shards;
+    /* Virtual node positions, sorted; owners[i] is the shard of positions[i] */
+    private final long[] positions;
+    private final int[] owners;
+
+    public ShardRing(List<InetSocketAddress> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardRing(List<InetSocketAddress> shards, int virtualNodes) {
+        if (shards.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("Need at least one shard and one virtual node");
+        }
+        this.shards = shards.toArray(new InetSocketAddress[0]);
+        TreeMap<Long, Integer> nodes = new TreeMap<>();
+        for (int shard = 0; shard < this.shards.length; shard++) {
+            InetSocketAddress address = this.shards[shard];
+            for (int i = 0; i < virtualNodes; i++) {
+                nodes.putIfAbsent(hash(address.getHostString() + ":" + address.getPort() + "#" + i), shard);
+            }
+        }
+        this.positions = new long[nodes.size()];
+        this.owners = new int[nodes.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> node : nodes.entrySet()) {
+            positions[i] = node.getKey();
+            owners[i++] = node.getValue();
+        }
+    }
+
+    /** Ring of brokers listening on the given ports of one host. */
+    public static ShardRing ofPorts(String host, int... ports) {
+        List<InetSocketAddress> shards = new ArrayList<>(ports.length);
+        for (int port : ports) {
+            shards.add(new InetSocketAddress(host, port));
+        }
+        return new ShardRing(shards);
+    }
+
+    /** 64-bit FNV-1a over the characters, finished with the MurmurHash3 mixer. */
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    public InetSocketAddress getShard(int shard) {
+        return shards[shard];
+    }
+
+    /** Index of the shard, -1 if it is not part of the ring. */
+    public int indexOf(InetSocketAddress shard) {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i].equals(shard)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int ownerOf(String id) {
+        return segmentOwner(segmentOf(hash(id)));
+    }
+
+    // ---------------------------------------------------------------------
+    //  Segments: [segmentStart(i), segmentEnd(i)], in hash order, covering the ring
+    // ---------------------------------------------------------------------
+
+    public int segmentCount() {
+        // über der letzten Position bleibt nichts übrig, wenn sie zufällig Long.MAX_VALUE ist
+        return positions[positions.length - 1] == Long.MAX_VALUE ? positions.length : positions.length + 1;
+    }
+
+    public int segmentOf(long hash) {
+        int index = Arrays.binarySearch(positions, hash);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    public long segmentStart(int segment) {
+        return segment == 0 ? Long.MIN_VALUE : positions[segment - 1] + 1;
+    }
+
+    public long segmentEnd(int segment) {
+        return segment == positions.length ? Long.MAX_VALUE : positions[segment];
+    }
+
+    public int segmentOwner(int segment) {
+        return owners[segment == positions.length ? 0 : segment];
+    }
+}
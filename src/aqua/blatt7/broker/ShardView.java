@@ -0,0 +1,177 @@
+package aqua.blatt7.broker;
+
+import aqua.blatt7.common.msgtypes.ShardBoundaryUpdate;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/*
+ * One shard's view of the cluster-wide tank ring, which is ordered by id hash: all of its own
+ * tanks, plus the boundary tanks (first and last of each segment) the other shards announced.
+ * That is enough for exact neighbors of every own tank – the tank following one of ours is
+ * either ours as well or the first tank of another shard's segment, and vice versa.
+ *
+ * Not thread-safe; confined to the broker's membership writer like its ClientCollection.
+ */
+class ShardView {
+
+    private static final class Tank {
+        final String id;
+        final InetSocketAddress address;
+
+        Tank(String id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    private final ShardRing shards;
+    private final int self;
+    private final int[] ownSegments;
+    private final TreeMap<Long, Tank> local = new TreeMap<>();
+    private final TreeMap<Long, Tank> remote = new TreeMap<>();
+    private final Map<Integer, List<Long>> remoteKeys = new HashMap<>();
+    private final Map<Integer, Long> remoteVersions = new HashMap<>();
+    private List<Tank> published = Collections.emptyList();
+    private long version;
+
+    ShardView(ShardRing shards, int self) {
+        this.shards = shards;
+        this.self = self;
+        List<Integer> own = new ArrayList<>();
+        for (int segment = 0; segment < shards.segmentCount(); segment++) {
+            if (shards.segmentOwner(segment) == self) {
+                own.add(segment);
+            }
+        }
+        this.ownSegments = own.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    void add(String id, InetSocketAddress address) {
+        local.put(ShardRing.hash(id), new Tank(id, address));
+    }
+
+    void remove(String id) {
+        local.remove(ShardRing.hash(id));
+    }
+
+    /** True if no tank is known in the whole cluster. */
+    boolean isEmpty() {
+        return local.isEmpty() && remote.isEmpty();
+    }
+
+    /** Next tank in hash order, wrapping around; the tank itself if it is alone. */
+    InetSocketAddress rightOf(String id) {
+        long hash = ShardRing.hash(id);
+        Map.Entry<Long, Tank> next = min(local.higherEntry(hash), remote.higherEntry(hash));
+        if (next == null) {
+            next = min(local.firstEntry(), remote.firstEntry());
+        }
+        return next.getValue().address;
+    }
+
+    /** Previous tank in hash order, wrapping around; the tank itself if it is alone. */
+    InetSocketAddress leftOf(String id) {
+        long hash = ShardRing.hash(id);
+        Map.Entry<Long, Tank> previous = max(local.lowerEntry(hash), remote.lowerEntry(hash));
+        if (previous == null) {
+            previous = max(local.lastEntry(), remote.lastEntry());
+        }
+        return previous.getValue().address;
+    }
+
+    /** Own tanks that may have a neighbor in another shard: first and last of every own segment. */
+    List<String> boundaryIds() {
+        List<String> ids = new ArrayList<>();
+        for (Tank tank : boundary()) {
+            ids.add(tank.id);
+        }
+        return ids;
+    }
+
+    /**
+     * Update to send to the other shards, or {@code null} if the boundary did not change since
+     * the last one and {@code force} is not set.
+     */
+    ShardBoundaryUpdate boundaryUpdate(boolean force) {
+        List<Tank> boundary = boundary();
+        if (!force && sameTanks(boundary, published)) {
+            return null;
+        }
+        published = boundary;
+        // Zeitstempel als Untergrenze: ein neu gestarteter Broker überholt seine alten Versionen
+        version = Math.max(version + 1, System.currentTimeMillis());
+        String[] ids = new String[boundary.size()];
+        InetSocketAddress[] addresses = new InetSocketAddress[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = boundary.get(i).id;
+            addresses[i] = boundary.get(i).address;
+        }
+        return new ShardBoundaryUpdate(self, version, ids, addresses);
+    }
+
+    /** Replaces what is known about the sending shard; false if the update is stale or our own. */
+    boolean apply(ShardBoundaryUpdate update) {
+        int shard = update.getShard();
+        Long applied = remoteVersions.get(shard);
+        if (shard == self || shard < 0 || shard >= shards.size()
+                || applied != null && update.getVersion() <= applied) {
+            return false;
+        }
+        remoteVersions.put(shard, update.getVersion());
+        List<Long> old = remoteKeys.remove(shard);
+        if (old != null) {
+            for (Long key : old) {
+                remote.remove(key);
+            }
+        }
+        List<Long> keys = new ArrayList<>(update.getIds().length);
+        for (int i = 0; i < update.getIds().length; i++) {
+            String id = update.getIds()[i];
+            long hash = ShardRing.hash(id);
+            if (shards.segmentOwner(shards.segmentOf(hash)) != shard) {
+                continue; // gehört nicht dem Absender – andere Shard-Konfiguration?
+            }
+            remote.put(hash, new Tank(id, update.getAddresses()[i]));
+            keys.add(hash);
+        }
+        remoteKeys.put(shard, keys);
+        return true;
+    }
+
+    private List<Tank> boundary() {
+        List<Tank> boundary = new ArrayList<>();
+        for (int segment : ownSegments) {
+            Map.Entry<Long, Tank> first = local.ceilingEntry(shards.segmentStart(segment));
+            if (first == null || first.getKey() > shards.segmentEnd(segment)) {
+                continue;
+            }
+            boundary.add(first.getValue());
+            Map.Entry<Long, Tank> last = local.floorEntry(shards.segmentEnd(segment));
+            if (!last.getKey().equals(first.getKey())) {
+                boundary.add(last.getValue());
+            }
+        }
+        return boundary;
+    }
+
+    private static boolean sameTanks(List<Tank> a, List<Tank> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).id.equals(b.get(i).id) || !a.get(i).address.equals(b.get(i).address)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map.Entry<Long, Tank> min(Map.Entry<Long, Tank> a, Map.Entry<Long, Tank> b) {
+        return a == null ? b : b == null || a.getKey() <= b.getKey() ? a : b;
+    }
+
+    private static Map.Entry<Long, Tank> max(Map.Entry<Long, Tank> a, Map.Entry<Long, Tank> b) {
+        return a == null ? b : b == null || a.getKey() >= b.getKey() ? a : b;
+    }
+}
@@ -1,14 +1,28 @@
 package aqua.blatt7.client;
 
+import aqua.blatt7.transport.TransportMetrics;
+
 import javax.swing.*;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 public class Aqualife {
 
+    private static final int METRICS_LOG_INTERVAL_S = 10;
+
     public static void main(String[] args) {
         ClientCommunicator communicator = new ClientCommunicator();
         TankModel tankModel = new TankModel(communicator);
 
         communicator.newClientReceiver(tankModel).start();
+        TransportMetrics.global().startLogging(METRICS_LOG_INTERVAL_S, TimeUnit.SECONDS);
+        new Timer("NameCache-logger", true).scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                System.out.println(communicator.getNameResolutionCache());
+            }
+        }, TimeUnit.SECONDS.toMillis(METRICS_LOG_INTERVAL_S), TimeUnit.SECONDS.toMillis(METRICS_LOG_INTERVAL_S));
 
         SwingUtilities.invokeLater(new AquaGui(tankModel));
 
@@ -6,32 +6,76 @@ import aqua.blatt1.common.Properties;
 import aqua.blatt1.common.msgtypes.DeregisterRequest;
 import aqua.blatt1.common.msgtypes.HandoffRequest;
 import aqua.blatt1.common.msgtypes.RegisterRequest;
-import aqua.blatt4.common.msgtypes.NeighborUpdate;
 import aqua.blatt4.common.msgtypes.SnapshotMarker;
 import aqua.blatt5.common.msgtypes.*;
+import aqua.blatt7.common.MessageDispatcher;
 import aqua.blatt7.common.msgtypes.RegisterResponse;
+import aqua.blatt7.common.msgtypes.TopologyUpdate;
 import aqua.blatt7.crypto.SecureEndpoint;
+import aqua.blatt7.transport.StripedExecutor;
 import messaging.Endpoint;
 import messaging.Message;
 
+import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles sending and receiving messages between client and broker or peers.
  */
 public class ClientCommunicator {
+    private static final int FLUSH_DELAY_MS = 2; // Handoffs etc. an denselben Nachbarn bündeln
+    // Handoffs (und Marker, damit der Kanal FIFO bleibt) bestätigt und mit Wiederholung senden
+    private static final boolean RELIABLE_HANDOFF = true;
+    private static final int RECEIVE_WORKERS = 4;
+    private static final int RECEIVE_QUEUE_CAPACITY = 1024;
+
     private final SecureEndpoint endpoint;
+    private final InetSocketAddress broker;
+    private final NameResolutionCache nameCache;
 
     public ClientCommunicator() {
         endpoint = new SecureEndpoint();
+        endpoint.setFlushDelay(FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        broker = chooseBroker();
+        nameCache = new NameResolutionCache((tankId, requestId) ->
+                endpoint.send(broker, new NameResolutionRequest(tankId, requestId)));
+        // Adresse antwortet nicht mehr → nicht länger aus dem Cache verwenden
+        endpoint.setUnreachableListener(nameCache::invalidate);
+        new Timer("NameCache-expiry", true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                nameCache.expire();
+            }
+        }, NameResolutionCache.RETRY_MS, NameResolutionCache.RETRY_MS);
+    }
+
+    /** Hit rate and counters of the name resolution cache. */
+    public NameResolutionCache getNameResolutionCache() {
+        return nameCache;
+    }
+
+    /*
+     * Broker-Cluster z.B. mit -Daqua.brokers=4711,4712,4713: zufälliger Shard, bei dem sich der
+     * Tank registriert; Namensauflösungen leitet der Broker selbst an den zuständigen Shard weiter
+     */
+    private static InetSocketAddress chooseBroker() {
+        String ports = System.getProperty("aqua.brokers");
+        if (ports == null || ports.isBlank()) {
+            return new InetSocketAddress(Properties.HOST, Properties.PORT);
+        }
+        String[] choices = ports.split(",");
+        String port = choices[ThreadLocalRandom.current().nextInt(choices.length)].trim();
+        return new InetSocketAddress(Properties.HOST, Integer.parseInt(port));
     }
 
     public class ClientForwarder {
-        private final InetSocketAddress broker;
         private final TankModel tankModel;
 
         private ClientForwarder(TankModel tankModel) {
-            this.broker = new InetSocketAddress(Properties.HOST, Properties.PORT);
             this.tankModel = tankModel;
         }
 
@@ -50,7 +94,7 @@ public class ClientCommunicator {
         public void handOff(FishModel fish) {
             InetSocketAddress target = fish.getDirection() == Direction.LEFT ?
                     tankModel.getLeftNeighbor() : tankModel.getRightNeighbor();
-            endpoint.send(target, new HandoffRequest(fish));
+            sendToNeighbor(target, new HandoffRequest(fish));
         }
 
         /**
@@ -58,10 +102,26 @@ public class ClientCommunicator {
          */
         public void sendSnapshotMarker() {
             if (tankModel.getLeftNeighbor() != null) {
-                endpoint.send(tankModel.getLeftNeighbor(), new SnapshotMarker());
+                sendToNeighbor(tankModel.getLeftNeighbor(), new SnapshotMarker());
             }
             if (tankModel.getRightNeighbor() != null) {
-                endpoint.send(tankModel.getRightNeighbor(), new SnapshotMarker());
+                sendToNeighbor(tankModel.getRightNeighbor(), new SnapshotMarker());
+            }
+        }
+
+        /*
+         * Fische dürfen unterwegs nicht verloren gehen. Marker laufen über denselben
+         * zuverlässigen Kanal, sonst könnten sie einen wiederholten Handoff überholen.
+         */
+        private void sendToNeighbor(InetSocketAddress neighbor, Serializable payload) {
+            if (RELIABLE_HANDOFF) {
+                if (!endpoint.sendReliable(neighbor, payload)) {
+                    // Nachbar hängt oder ist weg – verwerfen statt den Tank-Thread zu blockieren
+                    System.err.println("[Client] Backlog zu " + neighbor + " voll, "
+                            + payload.getClass().getSimpleName() + " verworfen");
+                }
+            } else {
+                endpoint.send(neighbor, payload);
             }
         }
 
@@ -87,65 +147,89 @@ public class ClientCommunicator {
             }
         }
 
+        /* Fragt den Broker nur, wenn die Heimat nicht im Cache liegt */
         public void sendNameResolutionRequest(String tankId, String fishId) {
-            endpoint.send(broker, new NameResolutionRequest(tankId, fishId));
+            nameCache.resolve(tankId, home -> tankModel.handleNameResolutionResponse(fishId, home));
         }
 
+        /* Zuverlässig: bleibt die Bestätigung aus, ist die gecachte Heimat-Adresse veraltet */
         public void sendLocationUpdate(InetSocketAddress home, String fishId) {
-            endpoint.send(home, new LocationUpdate(fishId, tankModel.getMyAddress()));
+            if (!endpoint.sendReliable(home, new LocationUpdate(fishId, tankModel.getMyAddress()))) {
+                System.err.println("[Client] Backlog zu " + home + " voll, LocationUpdate für " + fishId + " verworfen");
+            }
         }
     }
 
     public class ClientReceiver extends Thread {
-        private final TankModel tankModel;
+        private final MessageDispatcher dispatcher;
+        private long topologyEpoch = Long.MIN_VALUE;
 
         private ClientReceiver(TankModel tankModel) {
-            this.tankModel = tankModel;
+            this.dispatcher = new MessageDispatcher()
+                    .on(RegisterResponse.class, (response, sender) -> {
+                        nameCache.setTtl(response.getLeaseDuration());
+                        tankModel.setMyAddress(sender);
+                        tankModel.onRegistration(response.getId(), response.getLeaseDuration());
+                    })
+                    // Pass sender so we can record channel state
+                    .on(HandoffRequest.class, (ho, sender) -> tankModel.receiveFish(sender, ho.getFish()))
+                    .on(TopologyUpdate.class, (update, sender) -> applyTopology(tankModel, update))
+                    .on(TokenMessage.class, (token, sender) -> tankModel.receiveToken())
+                    .on(SnapshotMarker.class, (marker, sender) -> tankModel.onSnapshotMarker(sender))
+                    .on(SnapshotTokenMessage.class, (token, sender) -> tankModel.onSnapshotToken(token))
+                    .on(LocationRequest.class, (req, sender) -> tankModel.locateFishGlobally(req.getFishId()))
+                    .on(NameResolutionResponse.class, (resp, sender) ->
+                            nameCache.complete(resp.getRequestId(), resp.getAddress()))
+                    .on(LocationUpdate.class, (update, sender) ->
+                            tankModel.receiveLocationUpdate(update.getFishId(), update.getLocation()));
         }
 
+        /* Beide Nachbarn auf einmal; verspätete Updates einer älteren Epoche verwerfen */
+        private synchronized void applyTopology(TankModel tankModel, TopologyUpdate update) {
+            if (update.getEpoch() <= topologyEpoch) {
+                return;
+            }
+            topologyEpoch = update.getEpoch();
+            InetSocketAddress left = tankModel.getLeftNeighbor();
+            InetSocketAddress right = tankModel.getRightNeighbor();
+            tankModel.setLeftNeighbor(update.getLeft());
+            tankModel.setRightNeighbor(update.getRight());
+            // Nachbar ersetzt – vielleicht weg
+            if (left != null && !left.equals(update.getLeft()) && !left.equals(update.getRight())) {
+                nameCache.invalidate(left);
+            }
+            if (right != null && !right.equals(update.getLeft()) && !right.equals(update.getRight())) {
+                nameCache.invalidate(right);
+            }
+        }
+
+        /*
+         * Dieser Thread leert nur den Socket; Entschlüsseln und Dispatch laufen in den
+         * Workern. Pro Absender immer derselbe Worker → Kanäle bleiben FIFO (Snapshot!).
+         */
         @Override
         public void run() {
-            while (!isInterrupted()) {
-                Message msg = endpoint.blockingReceive();
-
-                if (msg.getPayload() instanceof RegisterResponse) {
-                    RegisterResponse response = (RegisterResponse) msg.getPayload();
-                    tankModel.setMyAddress(msg.getSender());
-                    tankModel.onRegistration(response.getId(), response.getLeaseDuration());
-                }
-                else if (msg.getPayload() instanceof HandoffRequest) {
-                    HandoffRequest ho = (HandoffRequest) msg.getPayload();
-                    // Pass sender so we can record channel state
-                    tankModel.receiveFish(msg.getSender(), ho.getFish());
-                }
-                else if (msg.getPayload() instanceof NeighborUpdate) {
-                    NeighborUpdate update = (NeighborUpdate) msg.getPayload();
-                    if (update.getDirection() == Direction.LEFT)
-                        tankModel.setLeftNeighbor(update.getNeighbor());
-                    else
-                        tankModel.setRightNeighbor(update.getNeighbor());
-                }
-                else if (msg.getPayload() instanceof TokenMessage) {
-                    tankModel.receiveToken();
-                }
-                else if (msg.getPayload() instanceof SnapshotMarker) {
-                    tankModel.onSnapshotMarker(msg.getSender());
-                }
-                else if (msg.getPayload() instanceof SnapshotTokenMessage) {
-                    tankModel.onSnapshotToken((SnapshotTokenMessage) msg.getPayload());
-                }
-                else if (msg.getPayload() instanceof LocationRequest) {
-                    String fishId = ((LocationRequest) msg.getPayload()).getFishId();
-                    tankModel.locateFishGlobally(fishId);
-                }
-                else if (msg.getPayload() instanceof NameResolutionResponse) {
-                    NameResolutionResponse resp = (NameResolutionResponse) msg.getPayload();
-                    tankModel.handleNameResolutionResponse(resp.getRequestId(), resp.getAddress());
-                }
-                else if (msg.getPayload() instanceof LocationUpdate) {
-                    LocationUpdate update = (LocationUpdate) msg.getPayload();
-                    tankModel.receiveLocationUpdate(update.getFishId(), update.getLocation());
+            StripedExecutor workers =
+                    new StripedExecutor("ClientReceiver-worker", RECEIVE_WORKERS, RECEIVE_QUEUE_CAPACITY);
+            try {
+                while (!isInterrupted()) {
+                    try {
+                        Message sealed = endpoint.receiveSealed();
+                        workers.execute(sealed.getSender(), () -> {
+                            Message message = endpoint.open(sealed);
+                            if (message != null) { // null: session key still missing
+                                dispatcher.dispatch(message);
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        // ein kaputtes Datagramm darf den Empfang nicht beenden
+                        if (!isInterrupted()) {
+                            System.err.println("[ClientReceiver] Dropping undecodable datagram: " + e);
+                        }
+                    }
                 }
+            } finally {
+                workers.shutdown();
             }
             System.out.println("Receiver stopped.");
         }
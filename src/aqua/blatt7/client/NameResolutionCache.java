@@ -0,0 +1,239 @@
+package aqua.blatt7.client;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Client-side cache for the broker's name resolution (tank id → tank address).
+ * <p>
+ * Entries live for one broker lease: a tank that is gone has been removed by the broker
+ * after that long at the latest. Before that they are dropped when the client learns the
+ * address is stale – a neighbor replaced by a TopologyUpdate, or a send to the address that
+ * failed for good ({@link #invalidate(InetSocketAddress)}).
+ * <p>
+ * Concurrent misses for the same tank id are coalesced into one request to the broker; all
+ * callers are called back with its answer. A request whose answer does not arrive is sent
+ * again after {@link #RETRY_MS} and given up after {@link #PENDING_TIMEOUT_MS}; its callers
+ * then get {@code null}, like for a tank the broker does not know. {@link #expire()} – called
+ * periodically by the owner – does the retries and timeouts and drops expired entries.
+ * <p>
+ * Callbacks run outside the cache lock, on the caller's thread for hits and on the thread
+ * calling {@link #complete} otherwise.
+ */
+public final class NameResolutionCache {
+
+    /** Sends the actual NameResolutionRequest. */
+    public interface Resolver {
+        void request(String tankId, String requestId);
+    }
+
+    /* Bis zur ersten RegisterResponse: Lease-Dauer des Brokers ist noch unbekannt */
+    public static final long DEFAULT_TTL_MS = 10_000;
+    public static final long RETRY_MS = 1_000;
+    public static final long PENDING_TIMEOUT_MS = 5 * RETRY_MS;
+
+    private static final class Entry {
+        final InetSocketAddress address;
+        final long expiresAt;
+
+        Entry(InetSocketAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Pending {
+        final String tankId;
+        final String requestId;
+        final List<Consumer<InetSocketAddress>> waiters = new ArrayList<>();
+        final long createdAt = System.currentTimeMillis();
+        long sentAt;
+
+        Pending(String tankId, String requestId) {
+            this.tankId = tankId;
+            this.requestId = requestId;
+        }
+    }
+
+    private final Resolver resolver;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Pending> pendingByTank = new HashMap<>();
+    private final Map<String, Pending> pendingByRequest = new HashMap<>();
+    private final String requestPrefix = "resolve-" + Integer.toHexString(new Random().nextInt()) + "-";
+    private long requestCounter;
+    private volatile long ttlMillis = DEFAULT_TTL_MS;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public NameResolutionCache(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /** Entries expire this long after the broker's answer; the broker's lease duration. */
+    public void setTtl(long millis) {
+        this.ttlMillis = millis;
+    }
+
+    /**
+     * Calls {@code callback} with the tank's address – right away on a hit, otherwise once the
+     * broker answered. Gets {@code null} for a tank the broker does not know or when no answer
+     * arrived in time.
+     */
+    public void resolve(String tankId, Consumer<InetSocketAddress> callback) {
+        long now = System.currentTimeMillis();
+        InetSocketAddress cached = null;
+        String send = null;
+        synchronized (this) {
+            Entry entry = entries.get(tankId);
+            if (entry != null && entry.expiresAt > now) {
+                cached = entry.address;
+            } else {
+                if (entry != null) {
+                    entries.remove(tankId);
+                }
+                Pending pending = pendingByTank.get(tankId);
+                if (pending == null) {
+                    misses.increment();
+                    pending = new Pending(tankId, requestPrefix + requestCounter++);
+                    pendingByTank.put(tankId, pending);
+                    pendingByRequest.put(pending.requestId, pending);
+                    send = pending.requestId;
+                } else {
+                    coalesced.increment();
+                    if (now - pending.sentAt >= RETRY_MS) {
+                        send = pending.requestId; // Antwort verloren gegangen?
+                    }
+                }
+                pending.waiters.add(callback);
+                if (send != null) {
+                    pending.sentAt = now;
+                }
+            }
+        }
+        if (cached != null) {
+            hits.increment();
+            callback.accept(cached);
+        } else if (send != null) {
+            resolver.request(tankId, send);
+        }
+    }
+
+    /**
+     * Answer of the broker; returns {@code false} if the request id is not one of ours or was
+     * already answered.
+     */
+    public boolean complete(String requestId, InetSocketAddress address) {
+        Pending pending;
+        synchronized (this) {
+            pending = pendingByRequest.remove(requestId);
+            if (pending == null) {
+                return false;
+            }
+            pendingByTank.remove(pending.tankId);
+            if (address != null) {
+                entries.put(pending.tankId, new Entry(address, System.currentTimeMillis() + ttlMillis));
+            }
+        }
+        for (Consumer<InetSocketAddress> waiter : pending.waiters) {
+            waiter.accept(address);
+        }
+        return true;
+    }
+
+    /**
+     * Housekeeping, to be called about every {@link #RETRY_MS}: sends unanswered requests
+     * again, gives up on those older than {@link #PENDING_TIMEOUT_MS} and drops expired
+     * entries.
+     */
+    public void expire() {
+        long now = System.currentTimeMillis();
+        List<Pending> retry = new ArrayList<>();
+        List<Pending> failed = new ArrayList<>();
+        synchronized (this) {
+            entries.values().removeIf(entry -> entry.expiresAt <= now);
+            for (Iterator<Pending> it = pendingByTank.values().iterator(); it.hasNext(); ) {
+                Pending pending = it.next();
+                if (now - pending.createdAt >= PENDING_TIMEOUT_MS) {
+                    it.remove();
+                    pendingByRequest.remove(pending.requestId);
+                    failed.add(pending);
+                } else if (now - pending.sentAt >= RETRY_MS) {
+                    pending.sentAt = now;
+                    retry.add(pending);
+                }
+            }
+        }
+        for (Pending pending : retry) {
+            resolver.request(pending.tankId, pending.requestId);
+        }
+        for (Pending pending : failed) {
+            timeouts.increment();
+            for (Consumer<InetSocketAddress> waiter : pending.waiters) {
+                waiter.accept(null);
+            }
+        }
+    }
+
+    public synchronized void invalidate(String tankId) {
+        if (entries.remove(tankId) != null) {
+            invalidations.increment();
+        }
+    }
+
+    /** Drops every entry pointing to {@code address}. */
+    public synchronized void invalidate(InetSocketAddress address) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().address.equals(address)) {
+                it.remove();
+                invalidations.increment();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Lookups that sent a request to the broker. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Lookups that joined a request already on its way. */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /** Requests given up on without an answer. */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /** Share of lookups answered without asking the broker, 0 without lookups. */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses() + getCoalesced();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[NameCache] hits=%d misses=%d coalesced=%d invalidations=%d timeouts=%d entries=%d hit rate %.1f%%",
+                getHits(), getMisses(), getCoalesced(), getInvalidations(), getTimeouts(), size(),
+                100 * getHitRate());
+    }
+}
@@ -22,6 +22,11 @@ public class TankModel extends Observable implements Iterable<FishModel> {
     private static final Random RAND = new Random();
 
     public synchronized void handleNameResolutionResponse(String fishId, InetSocketAddress home) {
+        if (home == null) {
+            // Heimat-Tank unbekannt oder Broker antwortet nicht – niemand zu benachrichtigen
+            System.out.println("[NameResolution] Heimat von " + fishId + " nicht gefunden");
+            return;
+        }
         forwarder.sendLocationUpdate(home, fishId);
     }
 
@@ -29,7 +34,7 @@ public class TankModel extends Observable implements Iterable<FishModel> {
         homeAgent.put(fishId, location);
     }
 
-    private InetSocketAddress myAddress;
+    private volatile InetSocketAddress myAddress;
 
     public void setMyAddress(InetSocketAddress address) {
         this.myAddress = address;
@@ -49,8 +54,8 @@ public class TankModel extends Observable implements Iterable<FishModel> {
     private volatile String id;
     private int fishCounter = 0;
 
-    private InetSocketAddress leftNeighbor;
-    private InetSocketAddress rightNeighbor;
+    private volatile InetSocketAddress leftNeighbor;
+    private volatile InetSocketAddress rightNeighbor;
 
     /* ---------- Token (Ring‑Synchronisation) ---------- */
     private boolean hasToken;
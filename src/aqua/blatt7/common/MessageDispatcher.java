@@ -0,0 +1,48 @@
+package aqua.blatt7.common;
+
+import messaging.Message;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routes received messages to the handler registered for their payload class with a single
+ * hash lookup, replacing {@code instanceof} chains. Handlers are registered once during
+ * setup (before the dispatcher is shared with other threads); afterwards it is read-only.
+ */
+public class MessageDispatcher {
+
+    public interface Handler<T> {
+        void handle(T payload, InetSocketAddress sender);
+    }
+
+    private final Map<Class<?>, Handler<Object>> handlers = new HashMap<>();
+
+    /* Per-class cache in front of the map – one field load on the hot path */
+    private final ClassValue<Handler<Object>> lookup = new ClassValue<>() {
+        @Override
+        protected Handler<Object> computeValue(Class<?> type) {
+            return handlers.get(type);
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> MessageDispatcher on(Class<T> type, Handler<? super T> handler) {
+        if (handlers.putIfAbsent(type, (Handler<Object>) handler) != null)
+            throw new IllegalArgumentException("Handler for " + type.getName() + " already registered");
+        return this;
+    }
+
+    /** Returns {@code false} if no handler is registered for the payload's class. */
+    public boolean dispatch(Message message) {
+        Object payload = message.getPayload();
+        Handler<Object> handler = lookup.get(payload.getClass());
+        if (handler == null) {
+            return false;
+        }
+        handler.handle(payload, message.getSender());
+        return true;
+    }
+}
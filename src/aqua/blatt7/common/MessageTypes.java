@@ -0,0 +1,335 @@
+package aqua.blatt7.common;
+
+import aqua.blatt1.common.Direction;
+import aqua.blatt1.common.FishModel;
+import aqua.blatt1.common.msgtypes.DeregisterRequest;
+import aqua.blatt1.common.msgtypes.HandoffRequest;
+import aqua.blatt1.common.msgtypes.RegisterRequest;
+import aqua.blatt4.common.msgtypes.NeighborUpdate;
+import aqua.blatt4.common.msgtypes.SnapshotMarker;
+import aqua.blatt5.common.msgtypes.*;
+import aqua.blatt7.common.msgtypes.ForwardedNameResolution;
+import aqua.blatt7.common.msgtypes.KeyExchangeMessage;
+import aqua.blatt7.common.msgtypes.RegisterResponse;
+import aqua.blatt7.common.msgtypes.SealedMessage;
+import aqua.blatt7.common.msgtypes.SessionKeyMessage;
+import aqua.blatt7.common.msgtypes.SessionTicketMessage;
+import aqua.blatt7.common.msgtypes.ShardBoundaryUpdate;
+import aqua.blatt7.common.msgtypes.TokenRequest;
+import aqua.blatt7.common.msgtypes.TopologyUpdate;
+import aqua.blatt7.transport.WireCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+import static aqua.blatt7.transport.WireCodec.*;
+
+/**
+ * Wire schemas and numeric type ids of all messages exchanged between tanks and the broker.
+ * Type ids are part of the wire format – never renumber an existing entry, only append.
+ */
+public final class MessageTypes {
+
+    public static final int REGISTER_REQUEST         = 1;
+    public static final int DEREGISTER_REQUEST       = 2;
+    public static final int HANDOFF_REQUEST          = 3;
+    public static final int REGISTER_RESPONSE        = 4;
+    public static final int NEIGHBOR_UPDATE          = 5;
+    public static final int SNAPSHOT_MARKER          = 6;
+    public static final int TOKEN_MESSAGE            = 7;
+    public static final int SNAPSHOT_TOKEN_MESSAGE   = 8;
+    public static final int LOCATION_REQUEST         = 9;
+    public static final int LOCATION_UPDATE          = 10;
+    public static final int NAME_RESOLUTION_REQUEST  = 11;
+    public static final int NAME_RESOLUTION_RESPONSE = 12;
+    public static final int KEY_EXCHANGE             = 13;
+    public static final int ENCRYPTED_PAYLOAD        = 14;
+    public static final int SESSION_KEY              = 15;
+    public static final int SEALED_MESSAGE           = 16;
+    public static final int SESSION_TICKET           = 17;
+    public static final int SHARD_BOUNDARY_UPDATE    = 18;
+    public static final int NAME_RESOLUTION_FORWARD  = 19;
+    public static final int TOPOLOGY_UPDATE          = 20;
+    public static final int TOKEN_REQUEST            = 21;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final WireCodec CODEC = createCodec();
+
+    private MessageTypes() {
+    }
+
+    /** Shared, read-only codec knowing every aqua message type. */
+    public static WireCodec codec() {
+        return CODEC;
+    }
+
+    private static WireCodec createCodec() {
+        return new WireCodec()
+                .register(REGISTER_REQUEST, RegisterRequest.class, new WireCodec.Schema<>() {
+                    public void write(RegisterRequest m, ByteBuffer out) {
+                    }
+
+                    public RegisterRequest read(ByteBuffer in) {
+                        return new RegisterRequest();
+                    }
+                })
+                .register(DEREGISTER_REQUEST, DeregisterRequest.class, new WireCodec.Schema<>() {
+                    public void write(DeregisterRequest m, ByteBuffer out) {
+                        putString(out, m.getId());
+                    }
+
+                    public DeregisterRequest read(ByteBuffer in) {
+                        return new DeregisterRequest(getString(in));
+                    }
+                })
+                .register(HANDOFF_REQUEST, HandoffRequest.class, new WireCodec.Schema<>() {
+                    public void write(HandoffRequest m, ByteBuffer out) {
+                        putFish(out, m.getFish());
+                    }
+
+                    public HandoffRequest read(ByteBuffer in) throws IOException {
+                        return new HandoffRequest(getFish(in));
+                    }
+                })
+                .register(REGISTER_RESPONSE, RegisterResponse.class, new WireCodec.Schema<>() {
+                    public void write(RegisterResponse m, ByteBuffer out) {
+                        putString(out, m.getId());
+                        out.putInt(m.getLeaseDuration());
+                    }
+
+                    public RegisterResponse read(ByteBuffer in) {
+                        return new RegisterResponse(getString(in), in.getInt());
+                    }
+                })
+                .register(NEIGHBOR_UPDATE, NeighborUpdate.class, new WireCodec.Schema<>() {
+                    public void write(NeighborUpdate m, ByteBuffer out) {
+                        putDirection(out, m.getDirection());
+                        putAddress(out, m.getNeighbor());
+                    }
+
+                    public NeighborUpdate read(ByteBuffer in) throws IOException {
+                        return new NeighborUpdate(getDirection(in), getAddress(in));
+                    }
+                })
+                .register(SNAPSHOT_MARKER, SnapshotMarker.class, new WireCodec.Schema<>() {
+                    public void write(SnapshotMarker m, ByteBuffer out) {
+                    }
+
+                    public SnapshotMarker read(ByteBuffer in) {
+                        return new SnapshotMarker();
+                    }
+                })
+                .register(TOKEN_MESSAGE, TokenMessage.class, new WireCodec.Schema<>() {
+                    public void write(TokenMessage m, ByteBuffer out) {
+                    }
+
+                    public TokenMessage read(ByteBuffer in) {
+                        return new TokenMessage();
+                    }
+                })
+                .register(SNAPSHOT_TOKEN_MESSAGE, SnapshotTokenMessage.class, new WireCodec.Schema<>() {
+                    public void write(SnapshotTokenMessage m, ByteBuffer out) {
+                        putString(out, m.getInitiatorId());
+                        out.putInt(m.getSum());
+                    }
+
+                    public SnapshotTokenMessage read(ByteBuffer in) {
+                        return new SnapshotTokenMessage(getString(in), in.getInt());
+                    }
+                })
+                .register(LOCATION_REQUEST, LocationRequest.class, new WireCodec.Schema<>() {
+                    public void write(LocationRequest m, ByteBuffer out) {
+                        putString(out, m.getFishId());
+                    }
+
+                    public LocationRequest read(ByteBuffer in) {
+                        return new LocationRequest(getString(in));
+                    }
+                })
+                .register(LOCATION_UPDATE, LocationUpdate.class, new WireCodec.Schema<>() {
+                    public void write(LocationUpdate m, ByteBuffer out) {
+                        putString(out, m.getFishId());
+                        putAddress(out, m.getLocation());
+                    }
+
+                    public LocationUpdate read(ByteBuffer in) throws IOException {
+                        return new LocationUpdate(getString(in), getAddress(in));
+                    }
+                })
+                .register(NAME_RESOLUTION_REQUEST, NameResolutionRequest.class, new WireCodec.Schema<>() {
+                    public void write(NameResolutionRequest m, ByteBuffer out) {
+                        putString(out, m.getTankId());
+                        putString(out, m.getRequestId());
+                    }
+
+                    public NameResolutionRequest read(ByteBuffer in) {
+                        return new NameResolutionRequest(getString(in), getString(in));
+                    }
+                })
+                .register(NAME_RESOLUTION_RESPONSE, NameResolutionResponse.class, new WireCodec.Schema<>() {
+                    public void write(NameResolutionResponse m, ByteBuffer out) {
+                        putString(out, m.getRequestId());
+                        putAddress(out, m.getAddress());
+                    }
+
+                    public NameResolutionResponse read(ByteBuffer in) throws IOException {
+                        return new NameResolutionResponse(getString(in), getAddress(in));
+                    }
+                })
+                .register(KEY_EXCHANGE, KeyExchangeMessage.class, new WireCodec.Schema<>() {
+                    public void write(KeyExchangeMessage m, ByteBuffer out) {
+                        putBytes(out, m.getPublicKey().getEncoded());
+                        out.put((byte) (m.isResponse() ? 1 : 0));
+                    }
+
+                    public KeyExchangeMessage read(ByteBuffer in) throws IOException {
+                        return new KeyExchangeMessage(getPublicKey(in), in.get() != 0);
+                    }
+                })
+                .register(ENCRYPTED_PAYLOAD, byte[].class, new WireCodec.Schema<>() {
+                    public void write(byte[] m, ByteBuffer out) {
+                        putBytes(out, m);
+                    }
+
+                    public byte[] read(ByteBuffer in) throws IOException {
+                        return getBytes(in);
+                    }
+                })
+                .register(SESSION_KEY, SessionKeyMessage.class, new WireCodec.Schema<>() {
+                    public void write(SessionKeyMessage m, ByteBuffer out) {
+                        out.putInt(m.getKeyId());
+                        putBytes(out, m.getWrappedKey());
+                    }
+
+                    public SessionKeyMessage read(ByteBuffer in) throws IOException {
+                        return new SessionKeyMessage(in.getInt(), getBytes(in));
+                    }
+                })
+                .register(SEALED_MESSAGE, SealedMessage.class, new WireCodec.Schema<>() {
+                    public void write(SealedMessage m, ByteBuffer out) {
+                        out.putInt(m.getKeyId());
+                        putBytes(out, m.getIv());
+                        putBytes(out, m.getCiphertext());
+                        putBytes(out, m.getTicket());
+                    }
+
+                    public SealedMessage read(ByteBuffer in) throws IOException {
+                        return new SealedMessage(in.getInt(), getBytes(in), getBytes(in), getBytes(in));
+                    }
+                })
+                .register(SESSION_TICKET, SessionTicketMessage.class, new WireCodec.Schema<>() {
+                    public void write(SessionTicketMessage m, ByteBuffer out) {
+                        out.putInt(m.getKeyId());
+                        putBytes(out, m.getTicket());
+                    }
+
+                    public SessionTicketMessage read(ByteBuffer in) throws IOException {
+                        return new SessionTicketMessage(in.getInt(), getBytes(in));
+                    }
+                })
+                .register(SHARD_BOUNDARY_UPDATE, ShardBoundaryUpdate.class, new WireCodec.Schema<>() {
+                    public void write(ShardBoundaryUpdate m, ByteBuffer out) {
+                        out.putInt(m.getShard());
+                        out.putLong(m.getVersion());
+                        out.putInt(m.getIds().length);
+                        for (int i = 0; i < m.getIds().length; i++) {
+                            putString(out, m.getIds()[i]);
+                            putAddress(out, m.getAddresses()[i]);
+                        }
+                    }
+
+                    public ShardBoundaryUpdate read(ByteBuffer in) throws IOException {
+                        int shard = in.getInt();
+                        long version = in.getLong();
+                        int count = in.getInt();
+                        if (count < 0 || count > in.remaining()) {
+                            throw new IOException("Invalid tank count " + count);
+                        }
+                        String[] ids = new String[count];
+                        InetSocketAddress[] addresses = new InetSocketAddress[count];
+                        for (int i = 0; i < count; i++) {
+                            ids[i] = getString(in);
+                            addresses[i] = getAddress(in);
+                        }
+                        return new ShardBoundaryUpdate(shard, version, ids, addresses);
+                    }
+                })
+                .register(NAME_RESOLUTION_FORWARD, ForwardedNameResolution.class, new WireCodec.Schema<>() {
+                    public void write(ForwardedNameResolution m, ByteBuffer out) {
+                        putString(out, m.getTankId());
+                        putString(out, m.getRequestId());
+                        putAddress(out, m.getRequester());
+                    }
+
+                    public ForwardedNameResolution read(ByteBuffer in) throws IOException {
+                        return new ForwardedNameResolution(getString(in), getString(in), getAddress(in));
+                    }
+                })
+                .register(TOPOLOGY_UPDATE, TopologyUpdate.class, new WireCodec.Schema<>() {
+                    public void write(TopologyUpdate m, ByteBuffer out) {
+                        out.putLong(m.getEpoch());
+                        putAddress(out, m.getLeft());
+                        putAddress(out, m.getRight());
+                    }
+
+                    public TopologyUpdate read(ByteBuffer in) throws IOException {
+                        return new TopologyUpdate(in.getLong(), getAddress(in), getAddress(in));
+                    }
+                })
+                .register(TOKEN_REQUEST, TokenRequest.class, new WireCodec.Schema<>() {
+                    public void write(TokenRequest m, ByteBuffer out) {
+                        putAddress(out, m.getTank());
+                    }
+
+                    public TokenRequest read(ByteBuffer in) throws IOException {
+                        return new TokenRequest(getAddress(in));
+                    }
+                });
+    }
+
+    // ---------------------------------------------------------------------
+    //  Shared field encodings
+    // ---------------------------------------------------------------------
+
+    public static void putDirection(ByteBuffer out, Direction direction) {
+        out.put((byte) (direction == null ? -1 : direction.ordinal()));
+    }
+
+    public static Direction getDirection(ByteBuffer in) throws IOException {
+        int ordinal = in.get();
+        if (ordinal == -1) return null;
+        if (ordinal < 0 || ordinal >= DIRECTIONS.length) {
+            throw new IOException("Invalid direction " + ordinal);
+        }
+        return DIRECTIONS[ordinal];
+    }
+
+    public static void putFish(ByteBuffer out, FishModel fish) {
+        putString(out, fish.getId());
+        out.putInt(fish.getX());
+        out.putInt(fish.getY());
+        putDirection(out, fish.getDirection());
+        out.put((byte) (fish.isToggled() ? 1 : 0));
+    }
+
+    public static FishModel getFish(ByteBuffer in) throws IOException {
+        FishModel fish = new FishModel(getString(in), in.getInt(), in.getInt(), getDirection(in));
+        if (in.get() != 0) {
+            fish.toggle();
+        }
+        return fish;
+    }
+
+    public static PublicKey getPublicKey(ByteBuffer in) throws IOException {
+        try {
+            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(getBytes(in)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid public key", e);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package aqua.blatt7.common.msgtypes;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * A name resolution request for a tank of another shard, passed on by the broker that received
+ * it. The owning broker answers the original requester directly.
+ */
+public class ForwardedNameResolution implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String tankId;
+    private final String requestId;
+    private final InetSocketAddress requester;
+
+    public ForwardedNameResolution(String tankId, String requestId, InetSocketAddress requester) {
+        this.tankId = tankId;
+        this.requestId = requestId;
+        this.requester = requester;
+    }
+
+    public String getTankId() {
+        return tankId;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public InetSocketAddress getRequester() {
+        return requester;
+    }
+}
@@ -3,17 +3,30 @@ package aqua.blatt7.common.msgtypes;
 import java.io.Serializable;
 import java.security.PublicKey;
 
-/** Control message used internally by {@code SecureEndpoint} to exchange RSA keys. */
+/**
+ * Control message used internally by {@code SecureEndpoint} to exchange RSA keys. A request is
+ * always answered with a response carrying the receiver's key; responses are not answered.
+ */
 public class KeyExchangeMessage implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private final PublicKey publicKey;
+    private final boolean response;
 
     public KeyExchangeMessage(PublicKey publicKey) {
+        this(publicKey, false);
+    }
+
+    public KeyExchangeMessage(PublicKey publicKey, boolean response) {
         this.publicKey = publicKey;
+        this.response = response;
     }
 
     public PublicKey getPublicKey() {
         return publicKey;
     }
+
+    public boolean isResponse() {
+        return response;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+package aqua.blatt7.common.msgtypes;
+
+import java.io.Serializable;
+
+/**
+ * Application payload encrypted by {@code SecureEndpoint} with AES-GCM under the session key
+ * {@code keyId} (see {@link SessionKeyMessage}). A resumed session attaches the receiver's
+ * {@link SessionTicketMessage ticket} until the receiver confirms it, so a receiver that lost
+ * the key can restore it without a round trip.
+ */
+public class SealedMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int keyId;
+    private final byte[] iv;
+    private final byte[] ciphertext;
+    private final byte[] ticket;
+
+    public SealedMessage(int keyId, byte[] iv, byte[] ciphertext) {
+        this(keyId, iv, ciphertext, null);
+    }
+
+    public SealedMessage(int keyId, byte[] iv, byte[] ciphertext, byte[] ticket) {
+        this.keyId = keyId;
+        this.iv = iv;
+        this.ciphertext = ciphertext;
+        this.ticket = ticket;
+    }
+
+    public int getKeyId() {
+        return keyId;
+    }
+
+    public byte[] getIv() {
+        return iv;
+    }
+
+    public byte[] getCiphertext() {
+        return ciphertext;
+    }
+
+    /** Resumption ticket for {@code keyId}, {@code null} on an established session. */
+    public byte[] getTicket() {
+        return ticket;
+    }
+}
@@ -0,0 +1,27 @@
+package aqua.blatt7.common.msgtypes;
+
+import java.io.Serializable;
+
+/**
+ * Control message used internally by {@code SecureEndpoint}: announces the AES session key the
+ * sender will use for its traffic to the receiver, wrapped with the receiver's RSA public key.
+ */
+public class SessionKeyMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int keyId;
+    private final byte[] wrappedKey;
+
+    public SessionKeyMessage(int keyId, byte[] wrappedKey) {
+        this.keyId = keyId;
+        this.wrappedKey = wrappedKey;
+    }
+
+    public int getKeyId() {
+        return keyId;
+    }
+
+    public byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+}
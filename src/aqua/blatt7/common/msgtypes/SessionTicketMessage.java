@@ -0,0 +1,29 @@
+package aqua.blatt7.common.msgtypes;
+
+import java.io.Serializable;
+
+/**
+ * Control message used internally by {@code SecureEndpoint}: sent back by the receiver of a
+ * {@link SessionKeyMessage}. The ticket holds the session key {@code keyId}, encrypted under
+ * a key only the issuer knows; presenting it in a {@link SealedMessage} later lets the issuer
+ * restore the session without another key exchange. Also confirms a ticket presented that way.
+ */
+public class SessionTicketMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int keyId;
+    private final byte[] ticket;
+
+    public SessionTicketMessage(int keyId, byte[] ticket) {
+        this.keyId = keyId;
+        this.ticket = ticket;
+    }
+
+    public int getKeyId() {
+        return keyId;
+    }
+
+    public byte[] getTicket() {
+        return ticket;
+    }
+}
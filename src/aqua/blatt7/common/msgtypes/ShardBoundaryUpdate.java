@@ -0,0 +1,42 @@
+package aqua.blatt7.common.msgtypes;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * Sent between the brokers of a sharded cluster: the first and the last tank (in hash order)
+ * of every ring segment the sending shard owns, i.e. all its tanks that can have a neighbor in
+ * another shard. Always the complete list; a receiver replaces what it knew about the shard
+ * and ignores updates with a version not newer than the last one applied.
+ */
+public class ShardBoundaryUpdate implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int shard;
+    private final long version;
+    private final String[] ids;
+    private final InetSocketAddress[] addresses;
+
+    public ShardBoundaryUpdate(int shard, long version, String[] ids, InetSocketAddress[] addresses) {
+        this.shard = shard;
+        this.version = version;
+        this.ids = ids;
+        this.addresses = addresses;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String[] getIds() {
+        return ids;
+    }
+
+    public InetSocketAddress[] getAddresses() {
+        return addresses;
+    }
+}
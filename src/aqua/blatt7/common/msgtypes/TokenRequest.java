@@ -0,0 +1,23 @@
+package aqua.blatt7.common.msgtypes;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * Sent by a broker of a sharded cluster to the token issuer (shard 0) when a tank joined a ring
+ * that looked empty. Only the issuer mints the ring's TokenMessage, so concurrent first joins on
+ * different shards still end up with a single token.
+ */
+public class TokenRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final InetSocketAddress tank;
+
+    public TokenRequest(InetSocketAddress tank) {
+        this.tank = tank;
+    }
+
+    public InetSocketAddress getTank() {
+        return tank;
+    }
+}
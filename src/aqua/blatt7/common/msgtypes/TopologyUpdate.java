@@ -0,0 +1,36 @@
+package aqua.blatt7.common.msgtypes;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * Both ring neighbors of the receiving tank as the broker sees them after a membership change.
+ * The broker sends one per affected tank and batch, instead of a NeighborUpdate per direction.
+ * Epochs only grow, also across broker restarts; a receiver ignores an update whose epoch is not
+ * newer than the last one it applied, so a delayed update never overwrites a newer view.
+ */
+public class TopologyUpdate implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long epoch;
+    private final InetSocketAddress left;
+    private final InetSocketAddress right;
+
+    public TopologyUpdate(long epoch, InetSocketAddress left, InetSocketAddress right) {
+        this.epoch = epoch;
+        this.left = left;
+        this.right = right;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public InetSocketAddress getLeft() {
+        return left;
+    }
+
+    public InetSocketAddress getRight() {
+        return right;
+    }
+}
@@ -0,0 +1,101 @@
+package aqua.blatt7.crypto;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.function.Supplier;
+
+/**
+ * RSA key pair persisted in a local file so an endpoint keeps its identity (and skips key
+ * generation) across restarts. Format: {@code [length][X.509 public key][length][PKCS#8
+ * private key]}. The file is written owner-readable only where the file system supports
+ * POSIX permissions, and replaced atomically so a crash never leaves half a key behind.
+ */
+final class KeyPairFile {
+
+    /* A 2048-bit pair takes about 1.5 KiB; anything much bigger is not ours */
+    private static final int MAX_FILE_SIZE = 64 * 1024;
+
+    private KeyPairFile() {
+    }
+
+    /**
+     * Loads the key pair from {@code file}, or generates one and stores it there. A file that
+     * cannot be read or parsed (truncated, corrupt, someone else's) is overwritten.
+     */
+    static KeyPair loadOrCreate(Path file, Supplier<KeyPair> generator) {
+        if (Files.exists(file)) {
+            try {
+                return load(file);
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                System.err.println("[KeyPairFile] " + file + " unreadable, generating a new key pair: " + e);
+            }
+        }
+        KeyPair pair = generator.get();
+        try {
+            store(file, pair);
+        } catch (IOException e) {
+            System.err.println("[KeyPairFile] Could not store key pair in " + file + ": " + e);
+        }
+        return pair;
+    }
+
+    private static KeyPair load(Path file) throws IOException, GeneralSecurityException {
+        long size = Files.size(file);
+        if (size > MAX_FILE_SIZE) {
+            throw new IOException("File has " + size + " bytes");
+        }
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        byte[] publicKey = readKey(in);
+        byte[] privateKey = readKey(in);
+        if (in.hasRemaining()) {
+            throw new IOException(in.remaining() + " trailing bytes");
+        }
+        KeyFactory factory = KeyFactory.getInstance("RSA");
+        return new KeyPair(factory.generatePublic(new X509EncodedKeySpec(publicKey)),
+                factory.generatePrivate(new PKCS8EncodedKeySpec(privateKey)));
+    }
+
+    /* Length is checked against what is left, so a corrupt one cannot allocate anything */
+    private static byte[] readKey(ByteBuffer in) throws IOException {
+        if (in.remaining() < Integer.BYTES) {
+            throw new IOException("Truncated key length");
+        }
+        int length = in.getInt();
+        if (length <= 0 || length > in.remaining()) {
+            throw new IOException("Invalid key length " + length + " (" + in.remaining() + " bytes left)");
+        }
+        byte[] key = new byte[length];
+        in.get(key);
+        return key;
+    }
+
+    private static void store(Path file, KeyPair pair) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system – keep the default permissions
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                byte[] publicKey = pair.getPublic().getEncoded();
+                byte[] privateKey = pair.getPrivate().getEncoded();
+                out.writeInt(publicKey.length);
+                out.write(publicKey);
+                out.writeInt(privateKey.length);
+                out.write(privateKey);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package aqua.blatt7.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Everything {@link SecureEndpoint} knows about one peer: its public key, the handshake state,
+ * payloads waiting for the handshake, and the AES session keys of both directions together
+ * with initialized {@link Cipher} objects, so the hot path does no provider lookups.
+ * <p>
+ * The pending queue is bounded by message count and serialized bytes; what happens when it
+ * is full is decided per call by the endpoint's {@link SecureEndpoint.Overflow} policy.
+ * <p>
+ * Handshake state is guarded by the session's monitor; the key objects guard their own cipher.
+ */
+final class PeerSession {
+
+    static final String DATA_CIPHER = "AES/GCM/NoPadding";
+    static final int GCM_TAG_BITS = 128;
+    static final int GCM_IV_BYTES = 12;
+    /* IV counters an inbound key remembers below the highest one seen; power of two */
+    static final int REPLAY_WINDOW = 1024;
+
+    /** Outcome of {@link #checkHandshake}. */
+    enum Handshake { DONE, WAITING, RETRANSMIT, TIMED_OUT }
+
+    final InetSocketAddress address;
+    private final PendingStats stats;
+    private final int maxPendingMessages;
+    private final int maxPendingBytes;
+
+    /* Peer's public key, null until the handshake is done */
+    private volatile PublicKey peerKey;
+    /* Payloads waiting for the peer's public key */
+    private final Queue<SecureEndpoint.Outgoing> pending = new ArrayDeque<>();
+    private int pendingBytes;
+    /* Running handshake: start (0 = none), last request sent, requests sent */
+    private long handshakeStarted;
+    private long lastKeyExchange;
+    private int attempts;
+    /* When we last asked the peer for its session key */
+    private long lastKeyRequest;
+
+    private volatile OutboundKey outbound;
+    private volatile InboundKey inbound;
+
+    /* Maintained by SessionCache */
+    long lastAccess;
+
+    PeerSession(InetSocketAddress address, PendingStats stats, int maxPendingMessages, int maxPendingBytes) {
+        this.address = address;
+        this.stats = stats;
+        this.maxPendingMessages = maxPendingMessages;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Resumes a session of a removed {@code PeerSession} for the same address: the peer's key is
+     * known right away, and with an {@code outbound} key the peer holds a ticket for, the peer
+     * is not even sent a new session key. The {@code inbound} key is kept together with its
+     * replay window, so messages seen before the removal are not accepted again.
+     * Only valid before the session is published.
+     */
+    void restore(PublicKey key, OutboundKey outbound, InboundKey inbound) {
+        this.peerKey = key;
+        if (outbound != null) {
+            outbound.unconfirm(); // the peer may have lost the key meanwhile
+            this.outbound = outbound;
+        }
+        this.inbound = inbound;
+    }
+
+    PublicKey getPeerKey() {
+        return peerKey;
+    }
+
+    OutboundKey getOutbound() {
+        return outbound;
+    }
+
+    InboundKey getInbound() {
+        return inbound;
+    }
+
+    void setInbound(InboundKey inbound) {
+        this.inbound = inbound;
+        synchronized (this) {
+            lastKeyRequest = 0;
+        }
+    }
+
+    /**
+     * Installs a key restored from a ticket, but only over no key or an older one – a replayed
+     * ticket must not take the place of the key the peer uses now. {@code false} if refused.
+     */
+    synchronized boolean resumeInbound(InboundKey resumed) {
+        InboundKey current = inbound;
+        if (current != null && !isNewer(resumed.keyId, current.keyId)) {
+            return false;
+        }
+        setInbound(resumed);
+        return true;
+    }
+
+    /* Key ids count up (see SecureEndpoint#nextKeyId); compared like sequence numbers */
+    static boolean isNewer(int keyId, int than) {
+        return keyId - than > 0;
+    }
+
+    /**
+     * Queues a payload if the peer's key is still unknown. Returns {@code false} if the key
+     * arrived in the meantime and the payload can be sent right away, {@code true} if it was
+     * queued – or dropped by {@link SecureEndpoint.Overflow#DROP_OLDEST} because it can never
+     * fit. {@code REJECT} (and {@code BLOCK} after {@code blockMillis}) throw instead.
+     */
+    synchronized boolean queueIfNoKey(SecureEndpoint.Outgoing outgoing, SecureEndpoint.Overflow overflow,
+                                      long blockMillis) {
+        int size = outgoing.data.length;
+        long deadline = 0;
+        while (peerKey == null) {
+            if (pending.size() < maxPendingMessages && pendingBytes + size <= maxPendingBytes) {
+                pending.add(outgoing);
+                pendingBytes += size;
+                stats.added(size);
+                return true;
+            }
+            switch (overflow) {
+                case DROP_OLDEST:
+                    if (size > maxPendingBytes || pending.isEmpty()) {
+                        stats.dropped.incrementAndGet();
+                        return true;
+                    }
+                    remove(pending.poll());
+                    stats.dropped.incrementAndGet();
+                    break;
+                case REJECT:
+                    stats.rejected.incrementAndGet();
+                    throw new IllegalStateException("Pending queue for " + address + " is full");
+                case BLOCK:
+                    long now = System.currentTimeMillis();
+                    if (deadline == 0) deadline = now + blockMillis;
+                    if (now >= deadline) {
+                        stats.rejected.incrementAndGet();
+                        throw new IllegalStateException("Pending queue for " + address + " still full after "
+                                + blockMillis + " ms");
+                    }
+                    try {
+                        wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        stats.rejected.incrementAndGet();
+                        throw new IllegalStateException("Interrupted while waiting for the handshake with " + address, e);
+                    }
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /** Starts a handshake unless one is running or done; {@code true} if a request should go out. */
+    synchronized boolean startHandshake(long now) {
+        if (peerKey != null || handshakeStarted != 0) {
+            return false;
+        }
+        handshakeStarted = lastKeyExchange = now;
+        attempts = 1;
+        return true;
+    }
+
+    /**
+     * Called periodically while a handshake runs. Says whether the key request has to be
+     * repeated (timer doubling from {@code initialRto} up to {@code maxRto}), or gives up after
+     * {@code timeout}: the waiting payloads are dropped and the next send starts over.
+     */
+    synchronized Handshake checkHandshake(long now, long initialRto, long maxRto, long timeout) {
+        if (peerKey != null || handshakeStarted == 0) {
+            return Handshake.DONE;
+        }
+        if (now - handshakeStarted >= timeout) {
+            stats.expired.addAndGet(pending.size());
+            drainPending();
+            handshakeStarted = 0;
+            notifyAll();
+            return Handshake.TIMED_OUT;
+        }
+        long rto = Math.min(initialRto << Math.min(attempts - 1, 20), maxRto);
+        if (now - lastKeyExchange < rto) {
+            return Handshake.WAITING;
+        }
+        lastKeyExchange = now;
+        attempts++;
+        return Handshake.RETRANSMIT;
+    }
+
+    /**
+     * Hands everything that waited for the peer's key to {@code flush}, then stores the key.
+     * Concurrent senders see the key only afterwards (and wait on the monitor meanwhile), so
+     * no later payload overtakes a queued one.
+     */
+    synchronized void setPeerKey(PublicKey key, Consumer<SecureEndpoint.Outgoing> flush) {
+        handshakeStarted = 0;
+        try {
+            for (SecureEndpoint.Outgoing outgoing : drainPending()) {
+                flush.accept(outgoing);
+            }
+        } finally {
+            peerKey = key;
+            notifyAll();
+        }
+    }
+
+    /** Drops waiting payloads (session evicted); returns how many. */
+    synchronized int clearPending() {
+        int dropped = drainPending().size();
+        stats.dropped.addAndGet(dropped);
+        notifyAll();
+        return dropped;
+    }
+
+    private List<SecureEndpoint.Outgoing> drainPending() {
+        List<SecureEndpoint.Outgoing> drained = new ArrayList<>(pending);
+        for (SecureEndpoint.Outgoing outgoing : drained) {
+            stats.removed(outgoing.data.length);
+        }
+        pending.clear();
+        pendingBytes = 0;
+        return drained;
+    }
+
+    private void remove(SecureEndpoint.Outgoing outgoing) {
+        pendingBytes -= outgoing.data.length;
+        stats.removed(outgoing.data.length);
+    }
+
+    /** Rate limit for session-key requests; {@code true} if a request may go out now. */
+    synchronized boolean tryKeyRequest(long now, long minInterval) {
+        if (now - lastKeyRequest < minInterval) {
+            return false;
+        }
+        lastKeyRequest = now;
+        return true;
+    }
+
+    /** Installs a fresh outbound key unless another thread did so for the same peer key. */
+    synchronized OutboundKey outboundFor(PublicKey key, Function<PublicKey, OutboundKey> factory) {
+        OutboundKey current = outbound;
+        if (current == null || current.peerKey != key) {
+            current = factory.apply(key);
+            outbound = current;
+        }
+        return current;
+    }
+
+    // ---------------------------------------------------------------------
+    //  Session keys
+    // ---------------------------------------------------------------------
+
+    /** Session key plus IV generator for my traffic to the peer. */
+    static final class OutboundKey {
+        final PublicKey peerKey;
+        final int keyId;
+        final SecretKey key;
+        private final int ivSalt;
+        private final AtomicLong ivCounter = new AtomicLong();
+        private final Cipher cipher;
+        /* Peer's ticket for this key and whether the peer is known to hold the key */
+        private volatile byte[] ticket;
+        private volatile long ticketReceived;
+        private volatile boolean confirmed = true;
+
+        OutboundKey(PublicKey peerKey, int keyId, SecretKey key, int ivSalt) throws GeneralSecurityException {
+            this.peerKey = peerKey;
+            this.keyId = keyId;
+            this.key = key;
+            this.ivSalt = ivSalt;
+            this.cipher = Cipher.getInstance(DATA_CIPHER);
+        }
+
+        /* salt + counter → an IV is never reused under the same key */
+        byte[] nextIv() {
+            return ByteBuffer.allocate(GCM_IV_BYTES).putInt(ivSalt).putLong(ivCounter.getAndIncrement()).array();
+        }
+
+        synchronized byte[] encrypt(byte[] iv, byte[] plaintext) throws GeneralSecurityException {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+            return cipher.doFinal(plaintext);
+        }
+
+        /** Ticket to attach to the next sealed message, {@code null} while the peer has the key. */
+        byte[] ticketToAttach() {
+            return confirmed ? null : ticket;
+        }
+
+        /** Peer sent (or confirmed) its ticket: it holds the key. */
+        void confirm(byte[] ticket) {
+            this.ticket = ticket;
+            this.ticketReceived = System.currentTimeMillis();
+            this.confirmed = true;
+        }
+
+        /** Peer may have lost the key: attach the ticket until it confirms again. */
+        void unconfirm() {
+            confirmed = false;
+        }
+
+        /** {@code false} while the ticket is attached to every sealed message. */
+        boolean isConfirmed() {
+            return confirmed;
+        }
+
+        /** Whether the peer can restore this key from its ticket. */
+        boolean isResumable(long now, long ticketLifetime) {
+            return ticket != null && now - ticketReceived < ticketLifetime;
+        }
+    }
+
+    /**
+     * Session key the peer encrypts its traffic to me with. The IV counters of messages
+     * opened under it are tracked in a sliding window ({@value #REPLAY_WINDOW} below the
+     * highest), so every message is accepted once only.
+     */
+    static final class InboundKey {
+        final int keyId;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final AtomicBoolean ticketConfirmed = new AtomicBoolean();
+        /* Highest IV counter opened so far and which of the ones below it were seen */
+        private long highest = -1;
+        private final long[] seen = new long[REPLAY_WINDOW / 64];
+
+        InboundKey(int keyId, SecretKey key) throws GeneralSecurityException {
+            this.keyId = keyId;
+            this.key = key;
+            this.cipher = Cipher.getInstance(DATA_CIPHER);
+        }
+
+        /**
+         * Plaintext, or {@code null} if a message with this IV was opened before or is too far
+         * behind to tell. Only messages that pass authentication enter the window.
+         */
+        synchronized byte[] decrypt(byte[] iv, byte[] ciphertext) throws GeneralSecurityException {
+            if (iv.length != GCM_IV_BYTES) {
+                throw new GeneralSecurityException("IV has " + iv.length + " bytes");
+            }
+            long counter = ByteBuffer.wrap(iv).getLong(4); // see OutboundKey#nextIv
+            if (counter < 0 || isReplay(counter)) {
+                return null;
+            }
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+            byte[] plaintext = cipher.doFinal(ciphertext);
+            markSeen(counter);
+            return plaintext;
+        }
+
+        private boolean isReplay(long counter) {
+            if (counter > highest) {
+                return false;
+            }
+            if (highest - counter >= REPLAY_WINDOW) {
+                return true;
+            }
+            return (seen[word(counter)] & (1L << counter)) != 0;
+        }
+
+        private void markSeen(long counter) {
+            if (counter > highest) {
+                if (counter - highest >= REPLAY_WINDOW) {
+                    Arrays.fill(seen, 0);
+                } else {
+                    for (long c = highest + 1; c < counter; c++) {
+                        seen[word(c)] &= ~(1L << c); // slot of a counter that left the window
+                    }
+                }
+                highest = counter;
+            }
+            seen[word(counter)] |= 1L << counter; // shift uses the low 6 bits only
+        }
+
+        private static int word(long counter) {
+            return (int) (counter >>> 6) & (REPLAY_WINDOW / 64 - 1);
+        }
+
+        /** {@code true} the first time only: a presented ticket gets confirmed once per key. */
+        boolean tryConfirmTicket() {
+            return ticketConfirmed.compareAndSet(false, true);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PeerSession[" + address + (peerKey == null ? ", handshaking" : "") + "]";
+    }
+}
@@ -0,0 +1,46 @@
+package aqua.blatt7.crypto;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the payloads a {@link SecureEndpoint} holds back while handshakes are running,
+ * over all peers: what is queued right now and what was given up on.
+ */
+public final class PendingStats {
+
+    final AtomicLong queuedMessages = new AtomicLong();
+    final AtomicLong queuedBytes    = new AtomicLong();
+    final AtomicLong dropped        = new AtomicLong();
+    final AtomicLong rejected       = new AtomicLong();
+    final AtomicLong expired        = new AtomicLong();
+    final AtomicLong retransmitted  = new AtomicLong();
+
+    void added(int bytes) {
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(bytes);
+    }
+
+    void removed(int bytes) {
+        queuedMessages.decrementAndGet();
+        queuedBytes.addAndGet(-bytes);
+    }
+
+    /** Payloads currently waiting for a handshake. */
+    public long getQueuedMessages() { return queuedMessages.get(); }
+    /** Serialized size of the payloads currently waiting. */
+    public long getQueuedBytes()    { return queuedBytes.get(); }
+    /** Dropped to make room ({@link SecureEndpoint.Overflow#DROP_OLDEST}) or because the session was removed. */
+    public long getDropped()        { return dropped.get(); }
+    /** Refused because the queue was full ({@link SecureEndpoint.Overflow#REJECT}, or a {@code BLOCK} that timed out). */
+    public long getRejected()       { return rejected.get(); }
+    /** Dropped because the peer did not answer the handshake in time. */
+    public long getExpired()        { return expired.get(); }
+    /** Repeated key-exchange requests. */
+    public long getRetransmitted()  { return retransmitted.get(); }
+
+    @Override
+    public String toString() {
+        return String.format("queued=%d (%d B) dropped=%d rejected=%d expired=%d retransmitted=%d",
+                getQueuedMessages(), getQueuedBytes(), getDropped(), getRejected(), getExpired(), getRetransmitted());
+    }
+}
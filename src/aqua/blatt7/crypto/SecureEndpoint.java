@@ -6,60 +6,183 @@ import aqua.blatt1.common.msgtypes.RegisterRequest;
 import aqua.blatt4.common.msgtypes.SnapshotMarker;
 import aqua.blatt7.common.msgtypes.*;
 import aqua.blatt4.common.msgtypes.NeighborUpdate;
-import messaging.Endpoint;
+import aqua.blatt7.common.MessageTypes;
+import aqua.blatt7.transport.NioEndpoint;
+import aqua.blatt7.transport.PayloadCodec;
+import aqua.blatt7.transport.StripedExecutor;
+import aqua.blatt7.transport.TransportMetrics;
 import messaging.Message;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * A drop-in replacement for {@link messaging.Endpoint} that transparently secures all
- * application-level traffic with RSA encryption. The first time two peers talk to
- * each other their public keys are exchanged automatically via {@link KeyExchangeMessage}s.
+ * application-level traffic. The first time two peers talk to each other their public keys
+ * are exchanged automatically via {@link KeyExchangeMessage}s. Afterwards each side picks an
+ * AES session key for its direction, sends it RSA-wrapped in a {@link SessionKeyMessage} and
+ * protects all further payloads with AES-GCM ({@link SealedMessage}) – one RSA private-key
+ * operation per peer instead of per message, and no size limit beyond the transport's.
  * These internal handshake messages are absorbed within {@code SecureEndpoint} and will never
  * reach the application layer.
+ * <p>
+ * A receiver that gets sealed data under a key it does not know (the session key got lost,
+ * or it restarted) sends its public key again; the sender answers with its session key.
+ * The sealed message itself is dropped, like any lost datagram.
+ * <p>
+ * Sessions are resumable: the receiver of a session key returns a {@link SessionTicketMessage
+ * ticket} holding that key, readable only by itself. When a session is removed (lease expired,
+ * evicted, idle) the peer's public key and the ticketed session key are remembered, so the
+ * next exchange with that address starts sending right away – the ticket rides along in the
+ * first {@link SealedMessage}s until the peer confirms it, and a peer that lost the key (or
+ * restarted with a persisted key pair) restores it from the ticket instead of asking for it.
+ * A ticket only counts from the address it was issued to and only replaces an older key, and
+ * every sealed message is opened once only (see {@link PeerSession.InboundKey}), so replaying
+ * captured traffic neither delivers it again nor rolls a peer back to an old key.
+ * <p>
+ * Payloads sent before the handshake completes wait serialized in a per-peer queue bounded by
+ * {@value #MAX_PENDING_MESSAGES} messages and {@value #MAX_PENDING_BYTES} bytes; the
+ * {@link Overflow} policy decides what a full queue does. Unanswered key requests are repeated
+ * with a doubling timeout, and after {@value #HANDSHAKE_TIMEOUT_MS} ms the waiting payloads are
+ * dropped – a silent peer costs a bounded amount of memory and nothing more.
  */
 public class SecureEndpoint {
 
-    /* Wrapped (plain) endpoint doing the actual UDP/TCP work */
-    private final Endpoint internal;
+    /** How application payloads are encrypted. */
+    public enum Mode {
+        /** AES-GCM under a per-peer session key set up with RSA (default) */
+        SESSION_KEY,
+        /** Each payload RSA-encrypted on its own – slow and limited to 245 bytes, kept for comparison */
+        RSA_PER_MESSAGE
+    }
+
+    /** What {@link #send} does when a peer's pending queue is full. */
+    public enum Overflow {
+        /** Oldest waiting payload is dropped to make room (default) – like a full socket buffer */
+        DROP_OLDEST,
+        /** Sender waits until the handshake completes or times out – never on the receive thread! */
+        BLOCK,
+        /** Sender gets an {@link IllegalStateException} right away */
+        REJECT
+    }
+
+    private static final String WRAP_CIPHER = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final int SESSION_KEY_BITS = 256;
+    /* Minimum gap between two requests for the same peer's session key */
+    private static final long KEY_REQUEST_INTERVAL_MS = 500;
+
+    /* Bounds of the per-peer session cache */
+    private static final int MAX_SESSIONS = 1024;
+    private static final long SESSION_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /* Bounds of each peer's queue of payloads waiting for the handshake */
+    public static final int MAX_PENDING_MESSAGES = 64;
+    public static final int MAX_PENDING_BYTES = 64 * 1024;
 
-    /* My asymmetric key pair */
-    private final PrivateKey privateKey;
-    private final PublicKey  publicKey;
+    /* Key requests are repeated after 200, 400, 800, 1600, 1600 … ms, then given up */
+    private static final long HANDSHAKE_RTO_MS = 200;
+    private static final long MAX_HANDSHAKE_RTO_MS = 1600;
+    public static final long HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final long HANDSHAKE_CHECK_INTERVAL_MS = 50;
 
-    /* Books which remote address owns which public key */
-    private final Map<InetSocketAddress, PublicKey> remoteKeys = new ConcurrentHashMap<>();
+    /* Removed sessions remembered for resumption */
+    private static final int MAX_RESUMABLE = 4096;
 
-    /* Messages that should be delivered as soon as the peer key has been learnt */
-    private final Map<InetSocketAddress, Queue<Serializable>> pending = new ConcurrentHashMap<>();
+    /* Per-worker backlog of sealed messages and capacity of the decrypted-message queue */
+    private static final int DECRYPT_QUEUE_CAPACITY = 1024;
+    /* Weckt Threads, die nach stopDecryptWorkers() noch auf die alte Queue warten */
+    private static final Message DECRYPT_STOPPED = new Message(null, null);
 
-    /* Keep track whether we have already sent *our* key to a certain peer */
-    private final Set<InetSocketAddress> keySent = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    /* Wrapped (plain) endpoint doing the actual UDP work */
+    private final NioEndpoint internal;
+
+    /* Codec for the plaintext that gets encrypted */
+    private final PayloadCodec codec = MessageTypes.codec();
+
+    /* Encrypt/decrypt latencies; message counts are taken by the wrapped endpoint */
+    private final TransportMetrics metrics = TransportMetrics.global();
+
+    /* My asymmetric key pair – generated (or loaded) in the background */
+    private final CompletableFuture<KeyPair> keyPair;
+
+    /* Tickets I issue to peers, keyed by my private key */
+    private final CompletableFuture<SessionTickets> tickets;
+
+    /* Public key, handshake state, waiting payloads and session keys per remote address */
+    private final PendingStats pendingStats = new PendingStats();
+    private final SessionCache sessions =
+            new SessionCache(MAX_SESSIONS, SESSION_IDLE_TIMEOUT_MS, this::newSession, this::sessionRemoved);
+
+    /* Peer key and (ticketed) outbound key of removed sessions, least recently removed first */
+    private final Map<InetSocketAddress, Resumable> resumable = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Resumable> eldest) {
+            return size() > MAX_RESUMABLE;
+        }
+    };
+
+    /* Sessions with a running handshake, watched by the handshake timer */
+    private final Set<PeerSession> handshaking = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService handshakeTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "SecureEndpoint-handshake");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final SecureRandom random = new SecureRandom();
+    /* Session key ids count up from the clock (seconds), so a restart continues above the old ones */
+    private final AtomicInteger lastKeyId = new AtomicInteger((int) (System.currentTimeMillis() / 1000));
+    private volatile Mode mode = Mode.SESSION_KEY;
+    private volatile Overflow overflow = Overflow.DROP_OLDEST;
+    private volatile Consumer<InetSocketAddress> unreachableListener = peer -> { };
+
+    /* Set by startDecryptWorkers: opened messages in per-sender order, ready for blockingReceive */
+    private volatile BlockingQueue<Message> decrypted;
+    private StripedExecutor decryptWorkers;
+    private Thread decryptReceiver;
 
     // ---------------------------------------------------------------------
     //  Construction helpers
     // ---------------------------------------------------------------------
 
     public SecureEndpoint() {
-        this.internal = new Endpoint();
-        KeyPair pair = generateKeyPair();
-        this.privateKey = pair.getPrivate();
-        this.publicKey  = pair.getPublic();
+        this(0);
     }
 
     public SecureEndpoint(int port) {
-        this.internal = new Endpoint(port);
-        KeyPair pair = generateKeyPair();
-        this.privateKey = pair.getPrivate();
-        this.publicKey  = pair.getPublic();
+        this(port, null);
     }
 
-    private KeyPair generateKeyPair() {
+    /**
+     * @param keyFile where the key pair is kept across restarts, {@code null} for a fresh
+     *                key pair per instance
+     */
+    public SecureEndpoint(int port, Path keyFile) {
+        this.internal = new NioEndpoint(port);
+        // RSA key generation takes a while – the socket is bound right away, and everything
+        // that needs our own key (handshakes, unwrapping session keys) waits for the future
+        this.keyPair = CompletableFuture.supplyAsync(keyFile == null
+                ? SecureEndpoint::generateKeyPair
+                : () -> KeyPairFile.loadOrCreate(keyFile, SecureEndpoint::generateKeyPair));
+        this.keyPair.whenComplete((pair, e) -> {
+            if (e != null) System.err.println("[SecureEndpoint] No key pair: " + e);
+        });
+        this.tickets = keyPair.thenApply(pair -> new SessionTickets(pair.getPrivate(), random));
+        handshakeTimer.scheduleWithFixedDelay(this::checkHandshakes,
+                HANDSHAKE_CHECK_INTERVAL_MS, HANDSHAKE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static KeyPair generateKeyPair() {
         try {
             KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
             kpg.initialize(2048); // 2048-bit RSA keys
@@ -77,8 +200,26 @@ public class SecureEndpoint {
      * Transparently encrypts and dispatches a payload. If the peer's public key
      * is not yet known a {@link KeyExchangeMessage} is sent first and the payload
      * is queued until the handshake completes.
+     *
+     * @throws IllegalStateException if the peer's pending queue is full and the
+     *                               {@link Overflow} policy is {@code REJECT} or {@code BLOCK}
      */
     public void send(InetSocketAddress receiver, Serializable payload) {
+        send(receiver, payload, false);
+    }
+
+    /**
+     * Like {@link #send} but over the acknowledged, retransmitting channel of the
+     * underlying {@link NioEndpoint#sendReliable transport}.
+     *
+     * @return {@code false} if the payload was dropped because the reliable backlog to the
+     *         receiver is full; a payload waiting for the handshake counts as accepted
+     */
+    public boolean sendReliable(InetSocketAddress receiver, Serializable payload) {
+        return send(receiver, payload, true);
+    }
+
+    private boolean send(InetSocketAddress receiver, Serializable payload, boolean reliable) {
         Objects.requireNonNull(receiver, "receiver");
         Objects.requireNonNull(payload,   "payload");
 
@@ -92,118 +233,575 @@ public class SecureEndpoint {
                 || payload instanceof SnapshotTokenMessage
                 || payload instanceof TokenMessage
                 || payload instanceof aqua.blatt4.common.msgtypes.NeighborUpdate
+                || payload instanceof TopologyUpdate
                 || payload instanceof NameResolutionRequest
                 || payload instanceof aqua.blatt5.common.msgtypes.NameResolutionResponse
                 || payload instanceof aqua.blatt5.common.msgtypes.LocationUpdate
                 || payload instanceof aqua.blatt5.common.msgtypes.LocationRequest
-                || payload instanceof HandoffRequest) {
-            internal.send(receiver, payload);
-            return;
+                || payload instanceof HandoffRequest
+                // Broker untereinander: dieselben Informationen wie NeighborUpdate / NameResolution
+                || payload instanceof ShardBoundaryUpdate
+                || payload instanceof ForwardedNameResolution
+                || payload instanceof TokenRequest) {
+            return transmit(receiver, payload, reliable);
         }
 
-        PublicKey peerKey = remoteKeys.get(receiver);
-        if (peerKey == null) {
-            // We do not yet know the peer's key → start handshake and queue message.
-            queuePending(receiver, payload);
-            initiateKeyExchange(receiver);
-            return;
+        byte[] data;
+        try {
+            data = serialize(payload);
+        } catch (IOException e) {
+            throw new RuntimeException("Encrypting " + payload.getClass().getName() + " failed", e);
+        }
+
+        PeerSession session = sessions.get(receiver);
+        if (session.getPeerKey() == null
+                && session.queueIfNoKey(new Outgoing(data, reliable), overflow, HANDSHAKE_TIMEOUT_MS)) {
+            // We do not yet know the peer's key → start handshake, message stays queued.
+            initiateKeyExchange(session);
+            return true;
+        }
+        return sendEncrypted(session, session.getPeerKey(), data, reliable);
+    }
+
+    /* Peer's key is known: encrypt the serialized payload according to the mode */
+    private boolean sendEncrypted(PeerSession session, PublicKey peerKey, byte[] data, boolean reliable) {
+        if (mode == Mode.RSA_PER_MESSAGE) {
+            /* Encrypt application data with the peer's public key */
+            return transmit(session.address, encryptRsa(data, peerKey), reliable);
+        }
+        return transmit(session.address, seal(outboundKey(session, peerKey), data), reliable);
+    }
+
+    /**
+     * Drops the session with a peer, e.g. after its lease expired. A later exchange with that
+     * address resumes the session if the peer's ticket is still valid, otherwise it starts
+     * with a fresh handshake.
+     */
+    public void forget(InetSocketAddress peer) {
+        sessions.remove(peer);
+    }
+
+    /** Size, hit/miss and eviction counters of the per-peer session cache. */
+    public SessionCache getSessionCache() {
+        return sessions;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = Objects.requireNonNull(mode, "mode");
+    }
+
+    /** Policy for payloads that do not fit into a peer's pending queue. */
+    public void setPendingOverflow(Overflow overflow) {
+        this.overflow = Objects.requireNonNull(overflow, "overflow");
+    }
+
+    /**
+     * Called with every peer that did not answer a handshake in time or gave up a reliable
+     * send, i.e. whose address is most likely stale.
+     */
+    public void setUnreachableListener(Consumer<InetSocketAddress> listener) {
+        this.unreachableListener = Objects.requireNonNull(listener, "listener");
+        internal.getReliableChannel().setGiveUpListener(listener);
+    }
+
+    /** Queued, dropped, rejected and expired payloads plus key-request retransmissions. */
+    public PendingStats getPendingStats() {
+        return pendingStats;
+    }
+
+    /** Serializes and encrypts a payload for the owner of {@code peerKey}. */
+    public byte[] encrypt(Serializable payload, PublicKey peerKey) {
+        try {
+            return encryptRsa(serialize(payload), peerKey);
+        } catch (IOException e) {
+            throw new RuntimeException("Encrypting " + payload.getClass().getName() + " failed", e);
         }
+    }
 
-        /* Encrypt application data with the peer's public key */
+    private byte[] encryptRsa(byte[] data, PublicKey peerKey) {
         try {
-            byte[] data       = serialize(payload);
+            long begin        = System.nanoTime();
             Cipher cipher     = Cipher.getInstance("RSA");
             cipher.init(Cipher.ENCRYPT_MODE, peerKey);
             byte[] encrypted  = cipher.doFinal(data);
-            internal.send(receiver, encrypted);
-        } catch (Exception e) {
-            System.err.println("[DEBUG] ERROR while encrypting payload of type: " + payload.getClass());
+            metrics.recordEncrypt(System.nanoTime() - begin);
+            return encrypted;
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("Sending encrypted message failed", e);
         }
     }
 
+    /** Inverse of {@link #encrypt}, with this endpoint's private key. */
+    public Serializable decrypt(byte[] encrypted) {
+        try {
+            long begin    = System.nanoTime();
+            Cipher cipher = Cipher.getInstance("RSA");
+            cipher.init(Cipher.DECRYPT_MODE, privateKey());
+            byte[] decrypted = cipher.doFinal(encrypted);
+            metrics.recordDecrypt(System.nanoTime() - begin);
+            return (Serializable) deserialize(decrypted);
+        } catch (Exception e) {
+            throw new RuntimeException("Decryption of incoming message failed", e);
+        }
+    }
+
+    /** Blocks until the key pair is ready. */
+    public PublicKey getPublicKey() {
+        return keyPair.join().getPublic();
+    }
+
+    /* Only needed once a peer uses our public key, so normally the future is long done */
+    private PrivateKey privateKey() {
+        return keyPair.join().getPrivate();
+    }
+
     /**
      * Blocks until a *decrypted* application message becomes available. Control
      * messages needed for the handshake are absorbed internally and therefore
      * invisible to callers.
      */
     public Message blockingReceive() {
+        BlockingQueue<Message> queue = decrypted;
+        if (queue != null) {
+            try {
+                Message message = queue.take();
+                if (message != DECRYPT_STOPPED) {
+                    return message;
+                }
+                queue.offer(DECRYPT_STOPPED); // für weitere wartende Threads
+                return blockingReceive(); // Workers gestoppt → selbst vom Socket lesen
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a message", e);
+            }
+        }
         while (true) {
-            Message incoming = internal.blockingReceive();
-            InetSocketAddress sender = incoming.getSender();
-            Object rawPayload        = incoming.getPayload();
-
-            /* 1) Handle handshake traffic */
-            if (rawPayload instanceof KeyExchangeMessage) {
-                handleKeyExchange(sender, (KeyExchangeMessage) rawPayload);
-                continue; // not for the application
+            Message message = open(nextSealed());
+            if (message != null) {
+                return message;
             }
+        }
+    }
 
-            /* 2) Handle encrypted application data */
-            if (rawPayload instanceof byte[]) {
+    /**
+     * Moves decryption off the caller of {@link #blockingReceive()}: a receive thread takes
+     * datagrams off the socket and handles the handshake, {@code workers} threads decrypt and
+     * decode. Messages of one sender are opened by the same worker, so they still arrive in
+     * the order they were sent; different senders are decrypted in parallel. Full queues
+     * block the receive thread, i.e. the socket buffer absorbs bursts as before.
+     */
+    public synchronized void startDecryptWorkers(int workers) {
+        if (decrypted != null) {
+            throw new IllegalStateException("Decrypt workers already running");
+        }
+        StripedExecutor pool = new StripedExecutor("SecureEndpoint-decrypt", workers, DECRYPT_QUEUE_CAPACITY);
+        BlockingQueue<Message> queue = new ArrayBlockingQueue<>(DECRYPT_QUEUE_CAPACITY);
+        Thread receiver = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    Cipher cipher = Cipher.getInstance("RSA");
-                    cipher.init(Cipher.DECRYPT_MODE, privateKey);
-                    byte[] decrypted = cipher.doFinal((byte[]) rawPayload);
-                    Object payload  = deserialize(decrypted);
-                    return new Message((Serializable) payload, sender);
-                } catch (Exception e) {
-                    throw new RuntimeException("Decryption of incoming message failed", e);
+                    Message sealed = nextSealed();
+                    pool.execute(sealed.getSender(), () -> {
+                        Message message = open(sealed);
+                        if (message != null) { // null: session key still missing
+                            try {
+                                queue.put(message);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    break; // interrupted while handing over – stopping
+                } catch (RuntimeException e) {
+                    // kaputtes Datagramm oder Handshake: nur dieses verwerfen, weiter empfangen
+                    if (!Thread.currentThread().isInterrupted()) {
+                        System.err.println("[SecureEndpoint] Dropping undecodable datagram: " + e);
+                    }
                 }
             }
+        }, "SecureEndpoint-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        decryptWorkers = pool;
+        decryptReceiver = receiver;
+        decrypted = queue;
+    }
 
-            /* 3) Fallback – message was sent unencrypted (should never happen) */
+    /** Stops the threads started by {@link #startDecryptWorkers}; messages still queued are lost. */
+    public synchronized void stopDecryptWorkers() {
+        if (decrypted == null) {
+            return;
+        }
+        decryptReceiver.interrupt();
+        decryptWorkers.shutdown();
+        // wer schon in blockingReceive() wartet, liest ab jetzt selbst vom Socket
+        decrypted.clear();
+        decrypted.offer(DECRYPT_STOPPED);
+        decrypted = null;
+        decryptWorkers = null;
+        decryptReceiver = null;
+    }
+
+    /**
+     * First half of {@link #blockingReceive()}: takes the next datagram off the socket and
+     * handles handshake traffic, but leaves application data encrypted. Meant for a receive
+     * thread that hands the expensive {@link #open} step to worker threads. Not available
+     * while {@link #startDecryptWorkers decrypt workers} run – they own the socket then.
+     */
+    public Message receiveSealed() {
+        if (decrypted != null) {
+            throw new IllegalStateException("Decrypt workers are receiving");
+        }
+        return nextSealed();
+    }
+
+    private Message nextSealed() {
+        while (true) {
+            Message incoming = internal.blockingReceive();
+
+            /* Handle handshake traffic right here so it stays in order with the data */
+            if (incoming.getPayload() instanceof KeyExchangeMessage) {
+                handleKeyExchange(incoming.getSender(), (KeyExchangeMessage) incoming.getPayload());
+                continue; // not for the application
+            }
+            if (incoming.getPayload() instanceof SessionKeyMessage) {
+                handleSessionKey(incoming.getSender(), (SessionKeyMessage) incoming.getPayload());
+                continue;
+            }
+            if (incoming.getPayload() instanceof SessionTicketMessage) {
+                handleTicket(incoming.getSender(), (SessionTicketMessage) incoming.getPayload());
+                continue;
+            }
             return incoming;
         }
     }
 
+    /**
+     * Second half of {@link #blockingReceive()}: decrypts and decodes a message returned by
+     * {@link #receiveSealed()}. Thread-safe, may run on any thread. Returns {@code null} if
+     * the message was sealed under a session key we do not have (yet).
+     */
+    public Message open(Message sealed) {
+        Object rawPayload = sealed.getPayload();
+
+        if (rawPayload instanceof SealedMessage) {
+            Serializable payload = unseal(sealed.getSender(), (SealedMessage) rawPayload);
+            return payload == null ? null : new Message(payload, sealed.getSender());
+        }
+
+        /* Encrypted application data */
+        if (rawPayload instanceof byte[]) {
+            return new Message(decrypt((byte[]) rawPayload), sealed.getSender());
+        }
+
+        /* Whitelisted message, sent unencrypted */
+        return sealed;
+    }
+
+    /** @see NioEndpoint#setFlushDelay(long, TimeUnit) */
+    public void setFlushDelay(long delay, TimeUnit unit) {
+        internal.setFlushDelay(delay, unit);
+    }
+
+    /** Sends all messages still waiting in a coalescing batch. */
+    public void flush() {
+        internal.flush();
+    }
+
     // ---------------------------------------------------------------------
     //  Handshake helpers
     // ---------------------------------------------------------------------
 
-    private void initiateKeyExchange(InetSocketAddress receiver) {
-        // Send our public key once (idempotent)
-        if (keySent.add(receiver)) {
-            internal.send(receiver, new KeyExchangeMessage(publicKey));
+    private void initiateKeyExchange(PeerSession session) {
+        // Send our public key once (idempotent); the handshake timer repeats it if needed
+        if (session.startHandshake(System.currentTimeMillis())) {
+            handshaking.add(session);
+            sendPublicKey(session.address, false);
+        }
+    }
+
+    /* Runs on the handshake timer: repeats unanswered key requests, gives up on silent peers */
+    private void checkHandshakes() {
+        long now = System.currentTimeMillis();
+        for (PeerSession session : handshaking) {
+            try {
+                switch (session.checkHandshake(now, HANDSHAKE_RTO_MS, MAX_HANDSHAKE_RTO_MS, HANDSHAKE_TIMEOUT_MS)) {
+                    case DONE:
+                        handshaking.remove(session);
+                        break;
+                    case RETRANSMIT:
+                        if (keyPair.isDone()) { // otherwise the first request has not even left yet
+                            pendingStats.retransmitted.incrementAndGet();
+                            sendPublicKey(session.address, false);
+                        }
+                        break;
+                    case TIMED_OUT:
+                        handshaking.remove(session);
+                        System.err.println("[SecureEndpoint] No answer from " + session.address + " within "
+                                + HANDSHAKE_TIMEOUT_MS + " ms, waiting payloads dropped");
+                        unreachableListener.accept(session.address);
+                        break;
+                    case WAITING:
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // keep the timer alive – a failing send must not stop the other handshakes
+                System.err.println("[SecureEndpoint] Handshake check for " + session.address + " failed: " + e);
+            }
         }
     }
 
     private void handleKeyExchange(InetSocketAddress sender, KeyExchangeMessage msg) {
+        PeerSession session = sessions.get(sender);
         PublicKey theirKey = msg.getPublicKey();
-        remoteKeys.put(sender, theirKey);
 
-        /* Send our key back if this is the first time we hear from that peer */
-        if (keySent.add(sender)) {
-            internal.send(sender, new KeyExchangeMessage(publicKey));
+        /* A request is always answered, so a peer that lost our key (restart, evicted session) gets it again */
+        if (!msg.isResponse()) {
+            sendPublicKey(sender, true);
+        }
+
+        if (theirKey.equals(session.getPeerKey())) {
+            /* Known peer asking again → it may lack our session key as well */
+            PeerSession.OutboundKey outbound = session.getOutbound();
+            if (outbound != null && !msg.isResponse()) {
+                if (outbound.isConfirmed()
+                        && outbound.isResumable(System.currentTimeMillis(), SessionTickets.TICKET_LIFETIME_MS)) {
+                    outbound.unconfirm(); // our next messages carry its ticket – no RSA on its side
+                } else {
+                    // asking although the ticket rides along → it refused the ticket
+                    sendSessionKey(sender, outbound);
+                }
+            }
+            return;
         }
 
-        /* Any queued payloads can now be transmitted */
-        Queue<Serializable> q = pending.remove(sender);
-        if (q != null) {
-            for (Serializable p : q) send(sender, p);
+        /* New peer or restarted peer; a new session key is set up on the next send.
+           Any queued payloads are transmitted before the key becomes visible to other senders. */
+        session.setPeerKey(theirKey, o -> {
+            if (!sendEncrypted(session, theirKey, o.data, o.reliable)) {
+                System.err.println("[SecureEndpoint] Reliable backlog to " + sender + " full, queued payload dropped");
+            }
+        });
+    }
+
+    /* Goes out as soon as our key pair is ready; payloads for the peer stay queued until then */
+    private void sendPublicKey(InetSocketAddress receiver, boolean response) {
+        keyPair.thenAccept(pair -> internal.send(receiver, new KeyExchangeMessage(pair.getPublic(), response)));
+    }
+
+    private PeerSession newSession(InetSocketAddress peer) {
+        PeerSession session = new PeerSession(peer, pendingStats, MAX_PENDING_MESSAGES, MAX_PENDING_BYTES);
+        Resumable previous;
+        synchronized (resumable) {
+            previous = resumable.remove(peer);
+        }
+        if (previous != null) {
+            PeerSession.OutboundKey outbound = previous.outbound;
+            boolean ticketed = outbound != null
+                    && outbound.isResumable(System.currentTimeMillis(), SessionTickets.TICKET_LIFETIME_MS);
+            session.restore(previous.peerKey, ticketed ? outbound : null, previous.inbound);
         }
+        return session;
     }
 
-    private void queuePending(InetSocketAddress receiver, Serializable payload) {
-        pending.computeIfAbsent(receiver, r -> new ArrayDeque<>()).add(payload);
+    private void sessionRemoved(PeerSession session, SessionCache.Cause cause) {
+        handshaking.remove(session);
+        PublicKey peerKey = session.getPeerKey();
+        PeerSession.InboundKey inbound = session.getInbound();
+        if (peerKey != null || inbound != null) {
+            PeerSession.OutboundKey outbound = session.getOutbound();
+            synchronized (resumable) {
+                resumable.put(session.address, new Resumable(peerKey,
+                        outbound != null && outbound.peerKey == peerKey ? outbound : null, inbound));
+            }
+        }
+        int dropped = session.clearPending();
+        if (dropped > 0) {
+            System.err.println("[SecureEndpoint] " + session.address + " removed (" + cause + "), "
+                    + dropped + " waiting payload(s) dropped");
+        }
     }
 
     // ---------------------------------------------------------------------
-    //  (De)serialization helpers – identical to task 1
+    //  Session keys
     // ---------------------------------------------------------------------
 
-    private byte[] serialize(Object obj) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(obj);
-            return bos.toByteArray();
+    /* Current key towards the peer; a new one is set up if none exists or the peer's key changed */
+    private PeerSession.OutboundKey outboundKey(PeerSession session, PublicKey peerKey) {
+        PeerSession.OutboundKey outbound = session.getOutbound();
+        if (outbound != null && outbound.peerKey == peerKey) {
+            return outbound;
         }
+        return session.outboundFor(peerKey, key -> {
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(SESSION_KEY_BITS, random);
+                PeerSession.OutboundKey fresh =
+                        new PeerSession.OutboundKey(key, nextKeyId(), generator.generateKey(), random.nextInt());
+                sendSessionKey(session.address, fresh);
+                return fresh;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("Session key generation failed", e);
+            }
+        });
     }
 
-    private Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(data);
-             ObjectInputStream in = new ObjectInputStream(bis)) {
-            return in.readObject();
+    /* Ahead of the clock while keys are created faster than one per second */
+    private int nextKeyId() {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        return lastKeyId.updateAndGet(last -> PeerSession.isNewer(now, last) ? now : last + 1);
+    }
+
+    private void sendSessionKey(InetSocketAddress receiver, PeerSession.OutboundKey outbound) {
+        try {
+            Cipher cipher = Cipher.getInstance(WRAP_CIPHER);
+            cipher.init(Cipher.WRAP_MODE, outbound.peerKey);
+            // reliable: the key must not get lost and arrives before reliably sent data
+            internal.sendReliable(receiver, new SessionKeyMessage(outbound.keyId, cipher.wrap(outbound.key)));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Wrapping session key failed", e);
         }
     }
-}
\ No newline at end of file
+
+    private void handleSessionKey(InetSocketAddress sender, SessionKeyMessage msg) {
+        PeerSession session = sessions.get(sender);
+        try {
+            Cipher cipher = Cipher.getInstance(WRAP_CIPHER);
+            cipher.init(Cipher.UNWRAP_MODE, privateKey());
+            SecretKey key = (SecretKey) cipher.unwrap(msg.getWrappedKey(), "AES", Cipher.SECRET_KEY);
+            PeerSession.InboundKey current = session.getInbound();
+            if (current == null || current.keyId != msg.getKeyId()) {
+                // the same key again (retransmitted, or asked for) keeps its replay window
+                PeerSession.InboundKey inbound = new PeerSession.InboundKey(msg.getKeyId(), key);
+                inbound.tryConfirmTicket(); // the ticket goes out right here
+                session.setInbound(inbound);
+            }
+            byte[] ticket = tickets.join().issue(sender, msg.getKeyId(), key);
+            internal.sendReliable(sender, new SessionTicketMessage(msg.getKeyId(), ticket));
+        } catch (GeneralSecurityException e) {
+            // wrapped for an older key pair of ours → ask for a fresh one
+            System.err.println("[SecureEndpoint] Unusable session key from " + sender + ": " + e);
+            requestSessionKey(session);
+        }
+    }
+
+    /* The peer holds our outbound key (again) and tells us how to let it restore the key later */
+    private void handleTicket(InetSocketAddress sender, SessionTicketMessage msg) {
+        PeerSession.OutboundKey outbound = sessions.get(sender).getOutbound();
+        if (outbound != null && outbound.keyId == msg.getKeyId()) {
+            outbound.confirm(msg.getTicket());
+        }
+    }
+
+    /*
+     * Restores the peer's session key from the ticket it presented; null if that does not work.
+     * Only a ticket issued to this address and for a newer key than the current one is taken.
+     */
+    private PeerSession.InboundKey resume(PeerSession session, SealedMessage sealed) {
+        SessionTickets issuer = tickets.getNow(null);
+        SecretKey key = issuer == null ? null : issuer.open(sealed.getTicket(), session.address, sealed.getKeyId());
+        if (key == null) {
+            return null;
+        }
+        try {
+            PeerSession.InboundKey inbound = new PeerSession.InboundKey(sealed.getKeyId(), key);
+            return session.resumeInbound(inbound) ? inbound : session.getInbound();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Resuming session failed", e);
+        }
+    }
+
+    private void requestSessionKey(PeerSession session) {
+        if (session.tryKeyRequest(System.currentTimeMillis(), KEY_REQUEST_INTERVAL_MS)) {
+            sendPublicKey(session.address, false);
+        }
+    }
+
+    private SealedMessage seal(PeerSession.OutboundKey outbound, byte[] data) {
+        try {
+            long begin  = System.nanoTime();
+            byte[] iv   = outbound.nextIv();
+            SealedMessage sealed = new SealedMessage(outbound.keyId, iv, outbound.encrypt(iv, data),
+                    outbound.ticketToAttach());
+            metrics.recordEncrypt(System.nanoTime() - begin);
+            return sealed;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Sending encrypted message failed", e);
+        }
+    }
+
+    private Serializable unseal(InetSocketAddress sender, SealedMessage sealed) {
+        PeerSession session = sessions.get(sender);
+        PeerSession.InboundKey inbound = session.getInbound();
+        if (sealed.getTicket() != null
+                && (inbound == null || PeerSession.isNewer(sealed.getKeyId(), inbound.keyId))) {
+            inbound = resume(session, sealed);
+        }
+        if (inbound == null || inbound.keyId != sealed.getKeyId()) {
+            requestSessionKey(session);
+            return null;
+        }
+        try {
+            long begin       = System.nanoTime();
+            byte[] decrypted = inbound.decrypt(sealed.getIv(), sealed.getCiphertext());
+            metrics.recordDecrypt(System.nanoTime() - begin);
+            if (decrypted == null) {
+                System.err.println("[SecureEndpoint] Dropping replayed message from " + sender);
+                return null;
+            }
+            if (sealed.getTicket() != null && inbound.tryConfirmTicket()) {
+                // lets the sender stop attaching the ticket
+                internal.sendReliable(sender, new SessionTicketMessage(sealed.getKeyId(), sealed.getTicket()));
+            }
+            return (Serializable) deserialize(decrypted);
+        } catch (Exception e) {
+            throw new RuntimeException("Decryption of incoming message failed", e);
+        }
+    }
+
+    /* false: reliable backlog full, payload dropped */
+    private boolean transmit(InetSocketAddress receiver, Serializable payload, boolean reliable) {
+        if (reliable) {
+            return internal.sendReliable(receiver, payload);
+        }
+        internal.send(receiver, payload);
+        return true;
+    }
+
+    /* What is kept of a removed session for resuming it */
+    private static final class Resumable {
+        final PublicKey peerKey;
+        final PeerSession.OutboundKey outbound;
+        final PeerSession.InboundKey inbound;
+
+        Resumable(PublicKey peerKey, PeerSession.OutboundKey outbound, PeerSession.InboundKey inbound) {
+            this.peerKey = peerKey;
+            this.outbound = outbound;
+            this.inbound = inbound;
+        }
+    }
+
+    /* A serialized payload waiting for the handshake, together with how it has to be sent */
+    static final class Outgoing {
+        final byte[] data;
+        final boolean reliable;
+
+        Outgoing(byte[] data, boolean reliable) {
+            this.data = data;
+            this.reliable = reliable;
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    //  (De)serialization helpers – binary wire codec shared with NioEndpoint
+    // ---------------------------------------------------------------------
+
+    private byte[] serialize(Serializable obj) throws IOException {
+        ByteBuffer buffer = codec.encodeGrowing(obj, NioEndpoint.DATAGRAM_SIZE, NioEndpoint.MAX_MESSAGE_SIZE);
+        return Arrays.copyOf(buffer.array(), buffer.limit());
+    }
+
+    private Object deserialize(byte[] data) throws IOException {
+        return codec.decode(ByteBuffer.wrap(data));
+    }
+}
@@ -0,0 +1,147 @@
+package aqua.blatt7.crypto;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Per-peer {@link PeerSession}s of a {@link SecureEndpoint}, bounded in size and idle time.
+ * The map is access-ordered, so the least recently used session is evicted first when the
+ * cache is full, and idle sessions are found at its head: every access drops the ones that
+ * have not been used for {@code idleTimeoutMillis} (no timer thread needed).
+ * <p>
+ * Removed sessions are reported to the {@link Listener} outside the cache lock.
+ */
+public class SessionCache {
+
+    public enum Cause {
+        /** Cache full, least recently used session dropped */
+        SIZE,
+        /** Not used for longer than the idle timeout */
+        IDLE,
+        /** Removed explicitly, e.g. because the peer's lease expired */
+        EXPLICIT
+    }
+
+    interface Listener {
+        void removed(PeerSession session, Cause cause);
+    }
+
+    private final int maxSessions;
+    private final long idleTimeoutMillis;
+    private final Function<InetSocketAddress, PeerSession> factory;
+    private final Listener listener;
+
+    private final LinkedHashMap<InetSocketAddress, PeerSession> sessions =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits        = new AtomicLong();
+    private final AtomicLong misses      = new AtomicLong();
+    private final AtomicLong evictions   = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    SessionCache(int maxSessions, long idleTimeoutMillis, Function<InetSocketAddress, PeerSession> factory,
+                 Listener listener) {
+        this.maxSessions = maxSessions;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.factory = factory;
+        this.listener = listener;
+    }
+
+    /** Session for the peer, created if there is none. */
+    PeerSession get(InetSocketAddress peer) {
+        List<PeerSession> idle, evicted = null;
+        PeerSession session;
+        long now = System.currentTimeMillis();
+        synchronized (sessions) {
+            idle = expire(now);
+            session = sessions.get(peer);
+            if (session != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                session = factory.apply(peer);
+                sessions.put(peer, session);
+                if (sessions.size() > maxSessions) {
+                    Iterator<PeerSession> eldest = sessions.values().iterator();
+                    evicted = List.of(eldest.next());
+                    eldest.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+            session.lastAccess = now;
+        }
+        report(idle, Cause.IDLE);
+        report(evicted, Cause.SIZE);
+        return session;
+    }
+
+    /** Removes the peer's session, if any. */
+    void remove(InetSocketAddress peer) {
+        PeerSession session;
+        synchronized (sessions) {
+            session = sessions.remove(peer);
+        }
+        if (session != null) {
+            listener.removed(session, Cause.EXPLICIT);
+        }
+    }
+
+    /** Drops idle sessions now instead of on the next access. */
+    public void expireIdle() {
+        List<PeerSession> idle;
+        synchronized (sessions) {
+            idle = expire(System.currentTimeMillis());
+        }
+        report(idle, Cause.IDLE);
+    }
+
+    /* Idle sessions sit at the head of the access order; caller holds the lock */
+    private List<PeerSession> expire(long now) {
+        List<PeerSession> idle = null;
+        for (Iterator<PeerSession> it = sessions.values().iterator(); it.hasNext(); ) {
+            PeerSession session = it.next();
+            if (now - session.lastAccess <= idleTimeoutMillis) {
+                break;
+            }
+            it.remove();
+            expirations.incrementAndGet();
+            if (idle == null) idle = new ArrayList<>();
+            idle.add(session);
+        }
+        return idle;
+    }
+
+    private void report(List<PeerSession> removed, Cause cause) {
+        if (removed != null) {
+            for (PeerSession session : removed) {
+                listener.removed(session, cause);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    //  Metrics
+    // ---------------------------------------------------------------------
+
+    public long getHits()        { return hits.get(); }
+    public long getMisses()      { return misses.get(); }
+    public long getEvictions()   { return evictions.get(); }
+    public long getExpirations() { return expirations.get(); }
+
+    public int size() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sessions=%d hits=%d misses=%d evicted=%d expired=%d",
+                size(), getHits(), getMisses(), getEvictions(), getExpirations());
+    }
+}
@@ -0,0 +1,99 @@
+package aqua.blatt7.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Issues and opens resumption tickets: a peer's session key, encrypted with AES-GCM under a
+ * ticket key only this endpoint knows. The ticket key is derived from the RSA private key, so
+ * with a {@link KeyPairFile persisted} key pair tickets stay valid across restarts – and
+ * become worthless as soon as the key pair changes.
+ * <p>
+ * A ticket is bound to the address of the peer it was issued to, so a captured ticket is of
+ * no use from anywhere else.
+ * <p>
+ * Ticket format: {@code [12-byte IV][GCM(issued at, key id, port, address, AES key)]}.
+ */
+final class SessionTickets {
+
+    /* Tickets older than this are refused; the peer falls back to a full key exchange */
+    static final long TICKET_LIFETIME_MS = 60 * 60 * 1000;
+
+    private static final byte[] LABEL = "aqua.blatt7 session ticket".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecretKey ticketKey;
+    private final Cipher cipher;
+    private final SecureRandom random;
+
+    SessionTickets(PrivateKey privateKey, SecureRandom random) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(LABEL);
+            this.ticketKey = new SecretKeySpec(digest.digest(privateKey.getEncoded()), "AES");
+            this.cipher = Cipher.getInstance(PeerSession.DATA_CIPHER);
+            this.random = random;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Ticket key derivation failed", e);
+        }
+    }
+
+    /** Ticket for the session key {@code keyId} the peer at {@code peer} announced to us. */
+    synchronized byte[] issue(InetSocketAddress peer, int keyId, SecretKey key) {
+        try {
+            byte[] iv = new byte[PeerSession.GCM_IV_BYTES];
+            random.nextBytes(iv);
+            byte[] encoded = key.getEncoded();
+            byte[] address = peer.getAddress().getAddress();
+            byte[] plaintext = ByteBuffer.allocate(15 + address.length + encoded.length)
+                    .putLong(System.currentTimeMillis()).putInt(keyId)
+                    .putShort((short) peer.getPort()).put((byte) address.length).put(address)
+                    .put(encoded).array();
+            cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(PeerSession.GCM_TAG_BITS, iv));
+            byte[] sealed = cipher.doFinal(plaintext);
+            return ByteBuffer.allocate(iv.length + sealed.length).put(iv).put(sealed).array();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Issuing session ticket failed", e);
+        }
+    }
+
+    /**
+     * Session key stored in the ticket, or {@code null} if the ticket was not issued by this
+     * key pair, has expired, belongs to another key id or was issued to another address.
+     */
+    synchronized SecretKey open(byte[] ticket, InetSocketAddress peer, int keyId) {
+        if (ticket.length <= PeerSession.GCM_IV_BYTES) {
+            return null;
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey,
+                    new GCMParameterSpec(PeerSession.GCM_TAG_BITS, ticket, 0, PeerSession.GCM_IV_BYTES));
+            ByteBuffer plaintext = ByteBuffer.wrap(cipher.doFinal(ticket, PeerSession.GCM_IV_BYTES,
+                    ticket.length - PeerSession.GCM_IV_BYTES));
+            long issued = plaintext.getLong();
+            if (plaintext.getInt() != keyId || System.currentTimeMillis() - issued > TICKET_LIFETIME_MS) {
+                return null;
+            }
+            int port = plaintext.getShort() & 0xFFFF;
+            byte[] address = new byte[plaintext.get()];
+            plaintext.get(address);
+            if (port != peer.getPort() || !Arrays.equals(address, peer.getAddress().getAddress())) {
+                return null; // issued to someone else
+            }
+            byte[] key = new byte[plaintext.remaining()];
+            plaintext.get(key);
+            return new SecretKeySpec(key, "AES");
+        } catch (GeneralSecurityException e) {
+            return null; // someone else's ticket or tampered with
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package aqua.blatt7.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed-capacity pool of reusable direct {@link ByteBuffer}s. Buffers are handed out in
+ * cleared state and must be given back with {@link #release(ByteBuffer)} once the datagram
+ * has been sent or decoded.
+ * <p>
+ * The pool is backed by an {@link ArrayBlockingQueue} on purpose: unlike linked queues it
+ * does not allocate a node per offer, so a warmed-up pool produces no garbage at all. If the
+ * pool runs dry a fresh buffer is allocated; surplus buffers are dropped on release.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,79 @@
+package aqua.blatt7.transport;
+
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Plain Java serialization, i.e. the wire format of {@link messaging.Endpoint}. The object
+ * streams read and write the pooled buffer directly instead of going through intermediate
+ * byte arrays.
+ */
+public class JavaSerializationCodec implements PayloadCodec {
+
+    @Override
+    public void encode(Serializable payload, ByteBuffer out) throws IOException {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new ByteBufferOutputStream(out))) {
+            oos.writeObject(payload);
+        } catch (BufferOverflowException e) {
+            throw new PayloadTooLargeException(payload.getClass(), e);
+        }
+    }
+
+    @Override
+    public Serializable decode(ByteBuffer in) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteBufferInputStream(in))) {
+            return (Serializable) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    //  Stream adapters over ByteBuffer
+    // ---------------------------------------------------------------------
+
+    static final class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+    }
+
+    static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
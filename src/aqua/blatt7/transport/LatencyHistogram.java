@@ -0,0 +1,75 @@
+package aqua.blatt7.transport;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets: bucket {@code b} counts samples in
+ * {@code [2^b, 2^(b+1))} nanoseconds. Recording is one array increment plus two adders, so
+ * it can stay on in production; percentiles are only as exact as the bucket width (factor 2).
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 1) nanos = 1;
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+        count.increment();
+        totalNanos.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) totalNanos.sum() / n;
+    }
+
+    /** Upper bound (in ns) of the bucket holding the given quantile, {@code 0} if empty. */
+    public long getPercentileNanos(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            snapshot[b] = buckets.get(b);
+            n += snapshot[b];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += snapshot[b];
+            if (seen >= rank) {
+                return b == 62 ? Long.MAX_VALUE : 1L << (b + 1);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets.set(b, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+    }
+
+    /** e.g. {@code "n=1200 mean=3.1us p50<4us p99<16us"} */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fus p50<%s p99<%s", getCount(), getMeanNanos() / 1000,
+                micros(getPercentileNanos(0.5)), micros(getPercentileNanos(0.99)));
+    }
+
+    private static String micros(long nanos) {
+        return nanos < 1000 ? nanos + "ns" : (nanos / 1000) + "us";
+    }
+}
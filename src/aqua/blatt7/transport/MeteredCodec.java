@@ -0,0 +1,38 @@
+package aqua.blatt7.transport;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a {@link PayloadCodec} and reports every successful encode/decode to
+ * {@link TransportMetrics}: payload type, encoded size and time taken. Attempts that fail
+ * with {@link PayloadTooLargeException} (and are then retried as fragments) are not counted.
+ */
+public class MeteredCodec implements PayloadCodec {
+
+    private final PayloadCodec delegate;
+    private final TransportMetrics metrics;
+
+    public MeteredCodec(PayloadCodec delegate, TransportMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void encode(Serializable payload, ByteBuffer out) throws IOException {
+        int start = out.position();
+        long begin = System.nanoTime();
+        delegate.encode(payload, out);
+        metrics.recordSent(payload.getClass(), out.position() - start, System.nanoTime() - begin);
+    }
+
+    @Override
+    public Serializable decode(ByteBuffer in) throws IOException {
+        int size = in.remaining();
+        long begin = System.nanoTime();
+        Serializable payload = delegate.decode(in);
+        metrics.recordReceived(payload.getClass(), size, System.nanoTime() - begin);
+        return payload;
+    }
+}
@@ -0,0 +1,430 @@
+package aqua.blatt7.transport;
+
+import aqua.blatt7.common.MessageTypes;
+import messaging.Message;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A drop-in replacement for {@link messaging.Endpoint} built on a non-blocking
+ * {@link DatagramChannel}. Datagrams are encoded into and received from pooled direct
+ * buffers, so apart from the decoded payload and its {@link Message} wrapper the steady
+ * state produces no garbage per message (no {@code byte[1024]}, no {@code DatagramPacket},
+ * no {@code ByteArrayOutputStream}).
+ * <p>
+ * Payloads are encoded with the compact {@link MessageTypes#codec() binary wire codec} unless
+ * another {@link PayloadCodec} is passed in. Like {@code Endpoint} the datagram size is
+ * limited to {@link #DATAGRAM_SIZE} bytes. Larger payloads (up to {@link #MAX_MESSAGE_SIZE})
+ * are split into fragment frames and put back together by a {@link Reassembler} on the
+ * receiving side.
+ * <p>
+ * With a {@link #setFlushDelay flush delay} set, messages for the same receiver are packed
+ * into one batch frame which goes out when it is full, when the delay has passed or when
+ * {@link #flush()} is called. Batches are unpacked on receive, callers always see single
+ * messages.
+ * <p>
+ * Messages that must not get lost can be sent with {@link #sendReliable}, which goes through
+ * the {@link ReliableChannel} (sequence numbers, acks and retransmission) instead.
+ * <p>
+ * Every encoded and decoded payload is counted in {@link TransportMetrics#global()}.
+ */
+public class NioEndpoint {
+
+    public static final int DATAGRAM_SIZE = 1024;
+    public static final int MAX_MESSAGE_SIZE = 1 << 20;
+    private static final int POOL_CAPACITY = 32;
+    /* Kernel receive buffer – room for bursts of fragments and batches */
+    private static final int SOCKET_RECEIVE_BUFFER = 1 << 20;
+
+    /* Frame kinds – first byte of every datagram */
+    private static final byte FRAME_SINGLE   = 1;
+    private static final byte FRAME_BATCH    = 2;
+    private static final byte FRAME_FRAGMENT = 3;
+
+    /* [kind][count] in front of a batch, [length] in front of each entry */
+    private static final int BATCH_HEADER = 3;
+    private static final int ENTRY_HEADER = 2;
+    /* A batch with less room left than this is sent right away */
+    private static final int MIN_BATCH_ROOM = 32;
+    /* [kind][messageId][index][count] in front of each fragment */
+    private static final int FRAGMENT_HEADER = 9;
+    private static final int CHUNK_SIZE = DATAGRAM_SIZE - FRAGMENT_HEADER;
+
+    /* Reassembly bounds */
+    private static final long MAX_REASSEMBLY_BYTES = 4L * MAX_MESSAGE_SIZE;
+    private static final long REASSEMBLY_TIMEOUT_MS = 2000;
+
+    /* Granularity of the retransmission timers */
+    private static final long RETRANSMIT_CHECK_MS = 20;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final BufferPool pool;
+    private final PayloadCodec codec;
+
+    /* Coalescing state – only used with a flush delay > 0 */
+    private volatile long flushDelayNanos;
+    private final Map<InetSocketAddress, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "NioEndpoint-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /* Remaining entries of a received batch */
+    private final Queue<Message> inbox = new ConcurrentLinkedQueue<>();
+
+    /* Fragmentation */
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+    private final AtomicLong fragmentsSent = new AtomicLong();
+    private final Reassembler reassembler = new Reassembler(CHUNK_SIZE, MAX_REASSEMBLY_BYTES, REASSEMBLY_TIMEOUT_MS);
+
+    private final ReliableChannel reliable;
+
+    public NioEndpoint() {
+        this(0);
+    }
+
+    public NioEndpoint(int port) {
+        this(port, MessageTypes.codec());
+    }
+
+    public NioEndpoint(int port, PayloadCodec codec) {
+        this.codec = new MeteredCodec(codec, TransportMetrics.global());
+        this.pool = new BufferPool(DATAGRAM_SIZE, POOL_CAPACITY);
+        try {
+            this.channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.reliable = new ReliableChannel(channel, pool, this.codec);
+        flusher.scheduleWithFixedDelay(reassembler::expire, REASSEMBLY_TIMEOUT_MS, REASSEMBLY_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(reliable::retransmit, RETRANSMIT_CHECK_MS, RETRANSMIT_CHECK_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // ---------------------------------------------------------------------
+    //  Public API – matches Endpoint
+    // ---------------------------------------------------------------------
+
+    public void send(InetSocketAddress receiver, Serializable payload) {
+        try {
+            if (flushDelayNanos > 0) {
+                while (!outboxes.computeIfAbsent(receiver, Outbox::new).append(payload)) {
+                    // eben geleert und entfernt → neue Outbox
+                }
+            } else {
+                sendSingle(receiver, payload);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sends a payload that is acknowledged by the receiver and retransmitted until it is.
+     * Reliable messages to the same receiver are delivered exactly once and in order. The
+     * encoded payload has to fit into a single datagram.
+     *
+     * @return {@code false} if the payload was dropped because too many messages to the
+     *         receiver are still waiting (see {@link ReliableChannel#send})
+     */
+    public boolean sendReliable(InetSocketAddress receiver, Serializable payload) {
+        try {
+            return reliable.send(receiver, payload);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Message blockingReceive() {
+        try {
+            while (true) {
+                Message message = receive();
+                if (message != null) {
+                    return message;
+                }
+                selector.select();
+                selector.selectedKeys().clear();
+                if (Thread.currentThread().isInterrupted()) {
+                    // select() kehrt sonst sofort wieder zurück
+                    throw new InterruptedIOException("Interrupted while waiting for a datagram");
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Returns the next pending message or {@code null} if none has arrived yet. */
+    public Message nonBlockingReceive() {
+        try {
+            return receive();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    //  Coalescing
+    // ---------------------------------------------------------------------
+
+    /**
+     * Sets how long a message may wait for further messages to the same receiver before its
+     * batch is sent. {@code 0} (the default) sends every message in its own datagram.
+     */
+    public void setFlushDelay(long delay, TimeUnit unit) {
+        flushDelayNanos = unit.toNanos(delay);
+        if (flushDelayNanos == 0) {
+            flush();
+        }
+    }
+
+    /** Sends all pending batches immediately. */
+    public void flush() {
+        for (Outbox outbox : outboxes.values()) {
+            outbox.flushQuietly();
+        }
+    }
+
+    /** Fragment-loss and reassembly metrics of the receiving side. */
+    public Reassembler getReassembler() {
+        return reassembler;
+    }
+
+    public long getFragmentsSent() {
+        return fragmentsSent.get();
+    }
+
+    /** Retransmission and loss metrics of {@link #sendReliable}. */
+    public ReliableChannel getReliableChannel() {
+        return reliable;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void close() {
+        flush();
+        flusher.shutdown();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    //  Internals
+    // ---------------------------------------------------------------------
+
+    private void sendSingle(InetSocketAddress receiver, Serializable payload) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            buffer.put(FRAME_SINGLE);
+            codec.encode(payload, buffer);
+            buffer.flip();
+            channel.send(buffer, receiver);
+        } catch (PayloadTooLargeException e) {
+            sendFragmented(receiver, payload);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private void sendFragmented(InetSocketAddress receiver, Serializable payload) throws IOException {
+        ByteBuffer encoded = codec.encodeGrowing(payload, 4 * DATAGRAM_SIZE, MAX_MESSAGE_SIZE);
+        int messageId = nextMessageId.getAndIncrement();
+        int count = (encoded.remaining() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int end = encoded.limit();
+        ByteBuffer buffer = pool.acquire();
+        try {
+            for (int index = 0; index < count; index++) {
+                buffer.clear();
+                buffer.put(FRAME_FRAGMENT).putInt(messageId).putShort((short) index).putShort((short) count);
+                encoded.limit(Math.min(encoded.position() + CHUNK_SIZE, end));
+                buffer.put(encoded);
+                buffer.flip();
+                channel.send(buffer, receiver);
+            }
+            fragmentsSent.addAndGet(count);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private Message receive() throws IOException {
+        Message queued = inbox.poll();
+        if (queued != null) {
+            return queued;
+        }
+        ByteBuffer buffer = pool.acquire();
+        try {
+            InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+            if (sender == null) {
+                return null;
+            }
+            buffer.flip();
+            byte kind = buffer.get();
+            switch (kind) {
+                case FRAME_SINGLE:
+                    return new Message(codec.decode(buffer), sender);
+                case FRAME_BATCH:
+                    return unpackBatch(buffer, sender);
+                case FRAME_FRAGMENT:
+                    int messageId = buffer.getInt();
+                    int index = buffer.getShort() & 0xFFFF;
+                    int count = buffer.getShort() & 0xFFFF;
+                    ByteBuffer complete = reassembler.add(sender, messageId, index, count, buffer);
+                    return complete == null ? null : new Message(codec.decode(complete), sender);
+                case ReliableChannel.FRAME_RELIABLE:
+                    reliable.onData(sender, buffer, inbox::add);
+                    return inbox.poll();
+                case ReliableChannel.FRAME_ACK:
+                    reliable.onAck(sender, buffer);
+                    return null;
+                default:
+                    throw new IOException("Unknown frame kind " + kind + " from " + sender);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private Message unpackBatch(ByteBuffer buffer, InetSocketAddress sender) throws IOException {
+        int count = buffer.getShort() & 0xFFFF;
+        int limit = buffer.limit();
+        Message first = null;
+        for (int i = 0; i < count; i++) {
+            int end = buffer.position() + ENTRY_HEADER + (buffer.getShort(buffer.position()) & 0xFFFF);
+            if (end > limit) {
+                throw new IOException("Truncated batch from " + sender);
+            }
+            buffer.position(buffer.position() + ENTRY_HEADER).limit(end);
+            Message message = new Message(codec.decode(buffer), sender);
+            buffer.limit(limit).position(end);
+            if (first == null) {
+                first = message;
+            } else {
+                inbox.add(message);
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Batch under construction for one receiver. The buffer starts with
+     * {@code [FRAME_BATCH][count]} followed by {@code [length][payload]} entries.
+     */
+    private final class Outbox implements Runnable {
+        private final InetSocketAddress receiver;
+        private ByteBuffer buffer;
+        private int count;
+        private boolean retired; // aus outboxes entfernt, nimmt nichts mehr an
+
+        Outbox(InetSocketAddress receiver) {
+            this.receiver = receiver;
+        }
+
+        /** Returns {@code false} if this outbox was retired; the caller needs a new one. */
+        synchronized boolean append(Serializable payload) throws IOException {
+            if (retired) {
+                return false;
+            }
+            if (buffer == null) {
+                open();
+            }
+            int start = buffer.position();
+            try {
+                buffer.position(start + ENTRY_HEADER);
+                codec.encode(payload, buffer);
+            } catch (PayloadTooLargeException e) {
+                buffer.position(start);
+                if (count == 0) {
+                    // too big for any batch → goes out in fragments of its own
+                    pool.release(buffer);
+                    buffer = null;
+                    sendFragmented(receiver, payload);
+                    return true;
+                }
+                // does not fit behind the others any more → ship those and start over
+                flush();
+                return append(payload);
+            }
+            buffer.putShort(start, (short) (buffer.position() - start - ENTRY_HEADER));
+            buffer.putShort(1, (short) ++count);
+            if (buffer.remaining() < MIN_BATCH_ROOM) {
+                flush();
+            }
+            return true;
+        }
+
+        private void open() {
+            buffer = pool.acquire();
+            buffer.put(FRAME_BATCH).putShort((short) 0);
+            count = 0;
+            flusher.schedule(this, flushDelayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        synchronized void flush() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                buffer.flip();
+                if (count == 1) {
+                    // a lone entry goes out as a single frame: [FRAME_SINGLE][payload]
+                    buffer.position(BATCH_HEADER + ENTRY_HEADER - 1);
+                    buffer.put(buffer.position(), FRAME_SINGLE);
+                }
+                if (count > 0) {
+                    channel.send(buffer, receiver);
+                }
+            } finally {
+                pool.release(buffer);
+                buffer = null;
+            }
+        }
+
+        /* Sends the batch and drops the outbox, so receivers that are gone do not pile up */
+        synchronized void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println("[NioEndpoint] Flushing batch to " + receiver + " failed: " + e);
+            }
+            retired = true;
+            outboxes.remove(receiver, this);
+        }
+
+        @Override
+        public void run() {
+            flushQuietly();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package aqua.blatt7.transport;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns application payloads into datagram bytes and back. Implementations write straight
+ * into (and read straight from) the pooled buffers of {@link NioEndpoint}, so they must not
+ * keep references to the buffers after returning.
+ */
+public interface PayloadCodec {
+
+    /** Appends the encoded payload at the buffer's current position. */
+    void encode(Serializable payload, ByteBuffer out) throws IOException;
+
+    /** Decodes one payload starting at the buffer's current position. */
+    Serializable decode(ByteBuffer in) throws IOException;
+
+    /**
+     * Encodes into a heap buffer that starts at {@code initialSize} bytes and doubles until
+     * the payload fits, up to {@code maxSize}. The returned buffer is flipped.
+     */
+    default ByteBuffer encodeGrowing(Serializable payload, int initialSize, int maxSize) throws IOException {
+        for (int size = initialSize; ; size = Math.min(size * 2, maxSize)) {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            try {
+                encode(payload, buffer);
+                return buffer.flip();
+            } catch (PayloadTooLargeException e) {
+                if (size >= maxSize) throw e;
+            }
+        }
+    }
+}
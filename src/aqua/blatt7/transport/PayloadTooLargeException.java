@@ -0,0 +1,15 @@
+package aqua.blatt7.transport;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link PayloadCodec} when the encoded payload does not fit into the buffer it
+ * is written to. The buffer position is undefined afterwards.
+ */
+public class PayloadTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public PayloadTooLargeException(Class<?> payloadType, Throwable cause) {
+        super("Payload exceeds datagram buffer: " + payloadType.getName(), cause);
+    }
+}
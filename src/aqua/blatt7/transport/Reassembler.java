@@ -0,0 +1,170 @@
+package aqua.blatt7.transport;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the fragments of oversized messages until they are complete. Memory is bounded:
+ * at most {@code maxBufferedBytes} are held for incomplete messages, the oldest partial
+ * message is dropped first when a new one does not fit, and partial messages older than
+ * {@code timeoutMillis} are discarded. Everything dropped that way counts as lost.
+ */
+public class Reassembler {
+
+    private static final class Key {
+        final InetSocketAddress sender;
+        final int messageId;
+
+        Key(InetSocketAddress sender, int messageId) {
+            this.sender = sender;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return messageId == other.messageId && sender.equals(other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sender, messageId);
+        }
+    }
+
+    private static final class Partial {
+        final byte[] data;
+        final BitSet received;
+        final int count;
+        final long startedAt;
+        int length;
+
+        Partial(int count, int chunkSize, long startedAt) {
+            this.data = new byte[count * chunkSize];
+            this.received = new BitSet(count);
+            this.count = count;
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final int chunkSize;
+    private final long maxBufferedBytes;
+    private final long timeoutMillis;
+
+    /* insertion ordered → iteration starts with the oldest partial message */
+    private final Map<Key, Partial> partials = new LinkedHashMap<>();
+    private long bufferedBytes;
+
+    private final AtomicLong fragmentsReceived    = new AtomicLong();
+    private final AtomicLong messagesReassembled  = new AtomicLong();
+    private final AtomicLong messagesTimedOut     = new AtomicLong();
+    private final AtomicLong messagesEvicted      = new AtomicLong();
+    private final AtomicLong fragmentsRejected    = new AtomicLong();
+
+    public Reassembler(int chunkSize, long maxBufferedBytes, long timeoutMillis) {
+        this.chunkSize = chunkSize;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Adds one fragment. Returns the complete message (positioned at its start) once the last
+     * missing fragment has arrived, {@code null} otherwise.
+     */
+    public synchronized ByteBuffer add(InetSocketAddress sender, int messageId, int index, int count,
+                                       ByteBuffer chunk) {
+        fragmentsReceived.incrementAndGet();
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        int length = chunk.remaining();
+        long size = (long) count * chunkSize;
+        if (count <= 0 || index < 0 || index >= count || length > chunkSize
+                || (index < count - 1 && length != chunkSize) || size > maxBufferedBytes) {
+            fragmentsRejected.incrementAndGet();
+            return null;
+        }
+
+        Key key = new Key(sender, messageId);
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            makeRoom(size);
+            partial = new Partial(count, chunkSize, now);
+            partials.put(key, partial);
+            bufferedBytes += size;
+        } else if (partial.count != count) {
+            fragmentsRejected.incrementAndGet();
+            return null;
+        }
+        if (partial.received.get(index)) {
+            return null; // duplicate
+        }
+        chunk.get(partial.data, index * chunkSize, length);
+        partial.received.set(index);
+        if (index == count - 1) {
+            partial.length = index * chunkSize + length;
+        }
+        if (partial.received.cardinality() < count) {
+            return null;
+        }
+        partials.remove(key);
+        bufferedBytes -= partial.data.length;
+        messagesReassembled.incrementAndGet();
+        return ByteBuffer.wrap(partial.data, 0, partial.length);
+    }
+
+    /** Drops partial messages whose fragments did not all arrive in time. */
+    public synchronized void expire() {
+        expire(System.currentTimeMillis());
+    }
+
+    private void expire(long now) {
+        for (Iterator<Partial> it = partials.values().iterator(); it.hasNext(); ) {
+            Partial partial = it.next();
+            if (now - partial.startedAt <= timeoutMillis) {
+                break; // all younger from here on
+            }
+            it.remove();
+            bufferedBytes -= partial.data.length;
+            messagesTimedOut.incrementAndGet();
+            System.err.println("[Reassembler] Dropped message, " + (partial.count - partial.received.cardinality())
+                    + " of " + partial.count + " fragments missing");
+        }
+    }
+
+    private void makeRoom(long size) {
+        for (Iterator<Partial> it = partials.values().iterator();
+             it.hasNext() && bufferedBytes + size > maxBufferedBytes; ) {
+            Partial partial = it.next();
+            it.remove();
+            bufferedBytes -= partial.data.length;
+            messagesEvicted.incrementAndGet();
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    //  Metrics
+    // ---------------------------------------------------------------------
+
+    public long getFragmentsReceived()   { return fragmentsReceived.get(); }
+    public long getMessagesReassembled() { return messagesReassembled.get(); }
+    public long getMessagesTimedOut()    { return messagesTimedOut.get(); }
+    public long getMessagesEvicted()     { return messagesEvicted.get(); }
+    public long getFragmentsRejected()   { return fragmentsRejected.get(); }
+
+    /** Messages given up on because fragments were missing (timeout) or memory ran out. */
+    public long getMessagesLost() {
+        return messagesTimedOut.get() + messagesEvicted.get();
+    }
+
+    public synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+}
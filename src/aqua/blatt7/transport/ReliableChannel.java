@@ -0,0 +1,402 @@
+package aqua.blatt7.transport;
+
+import messaging.Message;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Reliable, ordered delivery on top of UDP for the messages {@link NioEndpoint#sendReliable}
+ * is used for. Every peer gets its own sequence space; up to {@link #WINDOW} segments may be
+ * unacknowledged at a time (pipelining instead of stop-and-wait). The receiver answers each
+ * segment with a cumulative ack plus the sequence numbers it already holds out of order
+ * (selective acks), so only segments that are really missing are retransmitted.
+ * <p>
+ * Data frame: {@code [FRAME_RELIABLE][channelId][seq][base][payload]}<br>
+ * Ack frame:  {@code [FRAME_ACK][channelId][next expected seq][n]{[seq]}*n}
+ * <p>
+ * {@code base} is the lowest sequence number the sender still holds. A segment is given up
+ * after {@link #MAX_ATTEMPTS} transmissions; the next frame then carries a higher base and
+ * the receiver skips the gap instead of waiting for it forever. The same lets a receiver
+ * that lost its state (restart, idle peer pruned) join a running sequence.
+ * <p>
+ * The channel id is chosen randomly per sequence space. A receiver seeing a new channel id
+ * from a known address resets its sequence state, a peer that restarted or dropped its idle
+ * sequence state simply starts a new one. State of peers idle for longer than
+ * {@link #OUTBOUND_IDLE_MS} / {@link #INBOUND_IDLE_MS} is pruned; at most
+ * {@link #MAX_BACKLOG} segments per peer wait for a free window slot, further sends to a
+ * slow or dead peer are refused ({@link #send} returns {@code false}).
+ * <p>
+ * Sequence numbers start at a random value and wrap around; they are only ever compared
+ * by their difference ({@link #compareSeq}), which is fine as long as the segments
+ * compared lie less than 2^31 apart.
+ */
+public class ReliableChannel {
+
+    static final byte FRAME_RELIABLE = 4;
+    static final byte FRAME_ACK      = 5;
+
+    private static final int DATA_HEADER = 13;
+    private static final int WINDOW = 64;
+    private static final int MAX_SACKS = 32;
+    private static final long INITIAL_RTO_MS = 100;
+    private static final long MAX_RTO_MS = 2000;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final int MAX_BACKLOG = 1024;
+    private static final long OUTBOUND_IDLE_MS = 30_000;
+    private static final long INBOUND_IDLE_MS = 60_000;
+
+    private final DatagramChannel channel;
+    private final BufferPool pool;
+    private final PayloadCodec codec;
+
+    private final Map<InetSocketAddress, Outbound> outbound = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Inbound> inbound = new ConcurrentHashMap<>();
+
+    private final AtomicLong segmentsSent    = new AtomicLong();
+    private final AtomicLong retransmissions = new AtomicLong();
+    private final AtomicLong segmentsLost    = new AtomicLong();
+    private final AtomicLong duplicates      = new AtomicLong();
+    private final AtomicLong skipped         = new AtomicLong();
+    private final AtomicLong rejected        = new AtomicLong();
+
+    private volatile Consumer<InetSocketAddress> giveUpListener = peer -> { };
+
+    ReliableChannel(DatagramChannel channel, BufferPool pool, PayloadCodec codec) {
+        this.channel = channel;
+        this.pool = pool;
+        this.codec = codec;
+    }
+
+    // ---------------------------------------------------------------------
+    //  Sending side
+    // ---------------------------------------------------------------------
+
+    private static final class Segment {
+        final int seq;
+        final byte[] payload;
+        long sentAt;
+        int attempts;
+        boolean sacked; // liegt beim Empfänger, wartet auf die kumulative Bestätigung
+
+        Segment(int seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+
+    private final class Outbound {
+        final InetSocketAddress receiver;
+        final int channelId = ThreadLocalRandom.current().nextInt();
+        final TreeMap<Integer, Segment> inFlight = new TreeMap<>(ReliableChannel::compareSeq);
+        final Queue<byte[]> backlog = new ArrayDeque<>();
+        int nextSeq = ThreadLocalRandom.current().nextInt();
+        long lastActive = System.currentTimeMillis();
+        boolean retired; // aus outbound entfernt, nimmt nichts mehr an
+
+        Outbound(InetSocketAddress receiver) {
+            this.receiver = receiver;
+        }
+
+        /* Returns false if the backlog is full; the caller holds the monitor and checked retired. */
+        synchronized boolean send(byte[] payload) throws IOException {
+            if (inFlight.size() >= WINDOW) {
+                if (backlog.size() >= MAX_BACKLOG) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                backlog.add(payload); // window full → wait for acks
+                return true;
+            }
+            transmit(new Segment(nextSeq++, payload));
+            return true;
+        }
+
+        synchronized void onAck(int nextExpected, int[] sacks, int sackCount) throws IOException {
+            lastActive = System.currentTimeMillis();
+            inFlight.headMap(nextExpected).clear();
+            for (int i = 0; i < sackCount; i++) {
+                Segment segment = inFlight.get(sacks[i]);
+                if (segment != null) {
+                    segment.sacked = true;
+                }
+            }
+            while (inFlight.size() < WINDOW && !backlog.isEmpty()) {
+                transmit(new Segment(nextSeq++, backlog.poll()));
+            }
+        }
+
+        /*
+         * Returns true if a segment was given up on. A selectively acked segment is only sent
+         * again when nothing below it is missing any more, i.e. the gap in front of it was given
+         * up on – the copy carries the new base and lets the receiver move on.
+         */
+        synchronized boolean retransmitExpired(long now) throws IOException {
+            boolean gaveUp = false;
+            boolean gapBelow = false;
+            for (Iterator<Segment> it = inFlight.values().iterator(); it.hasNext(); ) {
+                Segment segment = it.next();
+                if (segment.sacked && gapBelow) {
+                    continue;
+                }
+                long rto = Math.min(INITIAL_RTO_MS << (segment.attempts - 1), MAX_RTO_MS);
+                if (now - segment.sentAt < rto) {
+                    gapBelow |= !segment.sacked;
+                    continue;
+                }
+                if (segment.attempts >= MAX_ATTEMPTS) {
+                    it.remove();
+                    if (!segment.sacked) {
+                        segmentsLost.incrementAndGet();
+                        System.err.println("[ReliableChannel] Gave up on segment " + segment.seq + " to " + receiver);
+                        gaveUp = true;
+                    }
+                    continue;
+                }
+                retransmissions.incrementAndGet();
+                write(segment);
+                gapBelow |= !segment.sacked;
+            }
+            while (inFlight.size() < WINDOW && !backlog.isEmpty()) {
+                transmit(new Segment(nextSeq++, backlog.poll()));
+            }
+            return gaveUp;
+        }
+
+        /* Nichts mehr unterwegs und lange still → Zustand freigeben */
+        synchronized boolean retireIfIdle(long now) {
+            if (inFlight.isEmpty() && backlog.isEmpty() && now - lastActive > OUTBOUND_IDLE_MS) {
+                retired = true;
+            }
+            return retired;
+        }
+
+        private void transmit(Segment segment) throws IOException {
+            inFlight.put(segment.seq, segment);
+            segmentsSent.incrementAndGet();
+            write(segment);
+        }
+
+        private void write(Segment segment) throws IOException {
+            segment.sentAt = System.currentTimeMillis();
+            segment.attempts++;
+            lastActive = segment.sentAt;
+            int base = inFlight.isEmpty() || compareSeq(segment.seq, inFlight.firstKey()) < 0
+                    ? segment.seq : inFlight.firstKey();
+            ByteBuffer buffer = pool.acquire();
+            try {
+                buffer.put(FRAME_RELIABLE).putInt(channelId).putInt(segment.seq).putInt(base).put(segment.payload);
+                buffer.flip();
+                channel.send(buffer, receiver);
+            } finally {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Queues {@code payload} for reliable delivery. Returns {@code false} – and drops the
+     * payload – if {@link #MAX_BACKLOG} segments to the receiver already wait for the window,
+     * i.e. the receiver is too slow or gone; the caller decides whether that is worth a log line.
+     */
+    boolean send(InetSocketAddress receiver, Serializable payload) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        byte[] encoded;
+        try {
+            buffer.position(DATA_HEADER); // must fit behind the header of a data frame
+            codec.encode(payload, buffer);
+            encoded = new byte[buffer.position() - DATA_HEADER];
+            buffer.get(DATA_HEADER, encoded);
+        } finally {
+            pool.release(buffer);
+        }
+        while (true) {
+            Outbound out = outbound.computeIfAbsent(receiver, Outbound::new);
+            synchronized (out) {
+                if (!out.retired) {
+                    return out.send(encoded);
+                }
+            }
+            // eben als unbenutzt entfernt → neuer Sequenzraum
+        }
+    }
+
+    /* Wraparound-safe order of sequence numbers: by difference, not by value */
+    static int compareSeq(int a, int b) {
+        return Integer.signum(a - b);
+    }
+
+    /** Called periodically: retransmits segments whose timer ran out and prunes idle peers. */
+    void retransmit() {
+        long now = System.currentTimeMillis();
+        for (Outbound out : outbound.values()) {
+            try {
+                if (out.retransmitExpired(now)) {
+                    giveUpListener.accept(out.receiver);
+                }
+            } catch (IOException e) {
+                System.err.println("[ReliableChannel] Retransmission to " + out.receiver + " failed: " + e);
+            }
+            if (out.retireIfIdle(now)) {
+                outbound.remove(out.receiver, out);
+            }
+        }
+        for (Inbound in : inbound.values()) {
+            synchronized (in) {
+                if (now - in.lastReceived > INBOUND_IDLE_MS) {
+                    in.retired = true;
+                    inbound.remove(in.sender, in);
+                }
+            }
+        }
+    }
+
+    void onAck(InetSocketAddress sender, ByteBuffer frame) throws IOException {
+        int ackChannelId = frame.getInt();
+        int nextExpected = frame.getInt();
+        int sackCount = Math.min(frame.get() & 0xFF, MAX_SACKS);
+        int[] sacks = new int[sackCount];
+        for (int i = 0; i < sackCount; i++) {
+            sacks[i] = frame.getInt();
+        }
+        Outbound out = outbound.get(sender);
+        // Acks eines früheren Sequenzraums (oder einer früheren Instanz) ignorieren
+        if (out != null && out.channelId == ackChannelId) {
+            out.onAck(nextExpected, sacks, sackCount);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    //  Receiving side
+    // ---------------------------------------------------------------------
+
+    private static final class Inbound {
+        final InetSocketAddress sender;
+        int peerChannelId;
+        int previousChannelId;
+        int expected;
+        long lastReceived;
+        boolean retired;
+        final TreeMap<Integer, Message> outOfOrder = new TreeMap<>(ReliableChannel::compareSeq);
+
+        Inbound(InetSocketAddress sender, int peerChannelId, int base) {
+            this.sender = sender;
+            this.peerChannelId = peerChannelId;
+            this.previousChannelId = peerChannelId;
+            this.expected = base; // was davor lag, hat eine frühere Instanz schon bestätigt
+        }
+    }
+
+    /** Handles a data frame; in-order messages are handed to {@code deliver}. */
+    void onData(InetSocketAddress sender, ByteBuffer frame, Consumer<Message> deliver) throws IOException {
+        int peerChannelId = frame.getInt();
+        int seq = frame.getInt();
+        int base = frame.getInt();
+        Inbound in;
+        do {
+            in = inbound.computeIfAbsent(sender, s -> new Inbound(s, peerChannelId, base));
+            synchronized (in) {
+                if (!in.retired) {
+                    onData(in, peerChannelId, seq, base, frame, deliver);
+                }
+            }
+        } while (in.retired); // eben als unbenutzt entfernt
+    }
+
+    private void onData(Inbound in, int peerChannelId, int seq, int base, ByteBuffer frame,
+                        Consumer<Message> deliver) throws IOException {
+        if (in.peerChannelId != peerChannelId) {
+            if (peerChannelId == in.previousChannelId) {
+                return; // verspäteter Rest des vorigen Sequenzraums
+            }
+            // peer restarted or started over → new sequence space
+            in.previousChannelId = in.peerChannelId;
+            in.peerChannelId = peerChannelId;
+            in.expected = base;
+            in.outOfOrder.clear();
+        }
+        in.lastReceived = System.currentTimeMillis();
+        if (base - in.expected > 0) {
+            // Sender hat alles unter base aufgegeben (oder schon bestätigt bekommen)
+            long missing = base - in.expected;
+            for (Iterator<Message> it = in.outOfOrder.headMap(base).values().iterator(); it.hasNext(); missing--) {
+                deliver.accept(it.next());
+                it.remove();
+            }
+            skipped.addAndGet(missing);
+            in.expected = base;
+            for (Message next; (next = in.outOfOrder.remove(in.expected)) != null; in.expected++) {
+                deliver.accept(next);
+            }
+        }
+        if (seq - in.expected < 0 || in.outOfOrder.containsKey(seq)) {
+            duplicates.incrementAndGet();
+        } else if (seq - in.expected < WINDOW) {
+            Message message = new Message(codec.decode(frame), in.sender);
+            if (seq == in.expected) {
+                deliver.accept(message);
+                in.expected++;
+                for (Message next; (next = in.outOfOrder.remove(in.expected)) != null; in.expected++) {
+                    deliver.accept(next);
+                }
+            } else {
+                in.outOfOrder.put(seq, message);
+            }
+        }
+        sendAck(in.sender, in);
+    }
+
+    private void sendAck(InetSocketAddress receiver, Inbound in) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            buffer.put(FRAME_ACK).putInt(in.peerChannelId).putInt(in.expected);
+            int sackCount = Math.min(in.outOfOrder.size(), MAX_SACKS);
+            buffer.put((byte) sackCount);
+            Iterator<Integer> it = in.outOfOrder.keySet().iterator();
+            for (int i = 0; i < sackCount; i++) {
+                buffer.putInt(it.next());
+            }
+            buffer.flip();
+            channel.send(buffer, receiver);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /** Called (on the retransmission timer) with every peer a segment was given up on. */
+    public void setGiveUpListener(Consumer<InetSocketAddress> listener) {
+        this.giveUpListener = listener;
+    }
+
+    // ---------------------------------------------------------------------
+    //  Metrics
+    // ---------------------------------------------------------------------
+
+    public long getSegmentsSent()    { return segmentsSent.get(); }
+    public long getRetransmissions() { return retransmissions.get(); }
+    public long getSegmentsLost()    { return segmentsLost.get(); }
+    public long getDuplicates()      { return duplicates.get(); }
+    /** Sequence numbers the receiver skipped because the sender gave up on them. */
+    public long getSkipped()         { return skipped.get(); }
+    /** Payloads refused because the backlog to their receiver was full. */
+    public long getRejected()        { return rejected.get(); }
+
+    /** Segments sent but not acknowledged yet, over all peers. */
+    public int getInFlight() {
+        int total = 0;
+        for (Outbound out : outbound.values()) {
+            synchronized (out) {
+                total += out.inFlight.size() + out.backlog.size();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,82 @@
+package aqua.blatt7.transport;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Small worker pool that keeps per-key ordering: all tasks submitted with the same key run on
+ * the same worker thread, one after another and in submission order, while tasks for
+ * different keys may run in parallel. Used with the sender address as key this keeps
+ * channels FIFO (which the snapshot algorithm relies on) although decoding and dispatching
+ * happen on several threads.
+ * <p>
+ * Every worker has a bounded queue; {@link #execute} blocks when it is full, so a slow
+ * consumer pushes back on the submitting I/O thread instead of growing the heap.
+ */
+public class StripedExecutor {
+
+    private final Worker[] workers;
+
+    public StripedExecutor(String name, int stripes, int queueCapacity) {
+        workers = new Worker[stripes];
+        for (int i = 0; i < stripes; i++) {
+            workers[i] = new Worker(name + "-" + i, queueCapacity);
+            workers[i].start();
+        }
+    }
+
+    public void execute(Object key, Runnable task) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        Worker worker = workers[(h & 0x7FFFFFFF) % workers.length];
+        try {
+            worker.queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while queueing task", e);
+        }
+    }
+
+    /** Number of tasks waiting over all workers. */
+    public int getQueued() {
+        int queued = 0;
+        for (Worker worker : workers) {
+            queued += worker.queue.size();
+        }
+        return queued;
+    }
+
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private static final class Worker extends Thread {
+        final BlockingQueue<Runnable> queue;
+
+        Worker(String name, int queueCapacity) {
+            super(name);
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
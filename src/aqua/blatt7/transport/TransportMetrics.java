@@ -0,0 +1,224 @@
+package aqua.blatt7.transport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters of the endpoint layer: messages and bytes per payload type in both
+ * directions (counted where payloads are encoded and decoded, see {@link MeteredCodec}) and
+ * latency histograms for serialization and encryption. Everything is adders and atomic
+ * increments, so the overhead is a few {@code nanoTime()} calls per message.
+ * <p>
+ * The numbers are visible over JMX under {@value #OBJECT_NAME} and, once
+ * {@link #startLogging} was called, as a periodic log line with per-second rates.
+ * Encrypted payloads of {@code SecureEndpoint} are counted as type {@code encrypted}.
+ */
+public final class TransportMetrics implements TransportMetricsMBean {
+
+    public static final String OBJECT_NAME = "aqua.blatt7:type=TransportMetrics";
+
+    private static final TransportMetrics GLOBAL = new TransportMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("[Metrics] JMX registration failed: " + e);
+        }
+    }
+
+    public static TransportMetrics global() {
+        return GLOBAL;
+    }
+
+    private static final class TypeStats {
+        final LongAdder sent = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder received = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        /* totals at the last log line, for rates */
+        long lastSent, lastReceived;
+    }
+
+    private final Map<Class<?>, TypeStats> types = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram serialize   = new LatencyHistogram();
+    private final LatencyHistogram deserialize = new LatencyHistogram();
+    private final LatencyHistogram encrypt     = new LatencyHistogram();
+    private final LatencyHistogram decrypt     = new LatencyHistogram();
+
+    private ScheduledExecutorService logger;
+    private long lastLogNanos;
+
+    private TransportMetrics() {
+    }
+
+    // ---------------------------------------------------------------------
+    //  Recording
+    // ---------------------------------------------------------------------
+
+    public void recordSent(Class<?> type, int bytes, long serializeNanos) {
+        TypeStats stats = stats(type);
+        stats.sent.increment();
+        stats.bytesSent.add(bytes);
+        serialize.record(serializeNanos);
+    }
+
+    public void recordReceived(Class<?> type, int bytes, long deserializeNanos) {
+        TypeStats stats = stats(type);
+        stats.received.increment();
+        stats.bytesReceived.add(bytes);
+        deserialize.record(deserializeNanos);
+    }
+
+    /** Cipher time per encrypted message; serializing the plaintext is not included. */
+    public void recordEncrypt(long nanos) {
+        encrypt.record(nanos);
+    }
+
+    /** Cipher time per decrypted message; deserializing the plaintext is not included. */
+    public void recordDecrypt(long nanos) {
+        decrypt.record(nanos);
+    }
+
+    private TypeStats stats(Class<?> type) {
+        TypeStats stats = types.get(type); // no lambda allocation once the type is known
+        return stats != null ? stats : types.computeIfAbsent(type, t -> new TypeStats());
+    }
+
+    // ---------------------------------------------------------------------
+    //  Periodic log line
+    // ---------------------------------------------------------------------
+
+    /** Prints a summary every {@code period}; further calls are ignored. */
+    public synchronized void startLogging(long period, TimeUnit unit) {
+        if (logger != null) {
+            return;
+        }
+        logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "TransportMetrics-logger");
+            t.setDaemon(true);
+            return t;
+        });
+        lastLogNanos = System.nanoTime();
+        logger.scheduleAtFixedRate(() -> System.out.println(logLine()), period, period, unit);
+    }
+
+    /** e.g. {@code [Metrics] HandoffRequest out 120.0/s in 118.0/s | serialize n=.. | ...} */
+    synchronized String logLine() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastLogNanos, 1) / 1e9;
+        lastLogNanos = now;
+        StringBuilder line = new StringBuilder("[Metrics]");
+        for (Map.Entry<Class<?>, TypeStats> entry : types.entrySet()) {
+            TypeStats stats = entry.getValue();
+            long sent = stats.sent.sum();
+            long received = stats.received.sum();
+            if (sent == stats.lastSent && received == stats.lastReceived) {
+                continue; // idle type
+            }
+            line.append(String.format(" %s out %.1f/s in %.1f/s |", name(entry.getKey()),
+                    (sent - stats.lastSent) / seconds, (received - stats.lastReceived) / seconds));
+            stats.lastSent = sent;
+            stats.lastReceived = received;
+        }
+        line.append(" serialize ").append(serialize)
+            .append(" | deserialize ").append(deserialize);
+        if (encrypt.getCount() > 0 || decrypt.getCount() > 0) {
+            line.append(" | encrypt ").append(encrypt).append(" | decrypt ").append(decrypt);
+        }
+        return line.toString();
+    }
+
+    // ---------------------------------------------------------------------
+    //  TransportMetricsMBean
+    // ---------------------------------------------------------------------
+
+    @Override
+    public long getMessagesSent() {
+        long total = 0;
+        for (TypeStats stats : types.values()) total += stats.sent.sum();
+        return total;
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        long total = 0;
+        for (TypeStats stats : types.values()) total += stats.received.sum();
+        return total;
+    }
+
+    @Override
+    public long getBytesSent() {
+        long total = 0;
+        for (TypeStats stats : types.values()) total += stats.bytesSent.sum();
+        return total;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        long total = 0;
+        for (TypeStats stats : types.values()) total += stats.bytesReceived.sum();
+        return total;
+    }
+
+    @Override
+    public String[] getMessageTypes() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Class<?>, TypeStats> entry : types.entrySet()) {
+            TypeStats stats = entry.getValue();
+            lines.add(String.format("%s sent=%d (%d B) received=%d (%d B)", name(entry.getKey()),
+                    stats.sent.sum(), stats.bytesSent.sum(), stats.received.sum(), stats.bytesReceived.sum()));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getLatencies() {
+        return new String[] {
+                "serialize "   + serialize,
+                "deserialize " + deserialize,
+                "encrypt "     + encrypt,
+                "decrypt "     + decrypt,
+        };
+    }
+
+    @Override
+    public synchronized void reset() {
+        types.clear();
+        serialize.reset();
+        deserialize.reset();
+        encrypt.reset();
+        decrypt.reset();
+    }
+
+    /** Messages of exactly {@code type} encoded so far, 0 for types never seen. */
+    public long getSent(Class<?> type) {
+        TypeStats stats = types.get(type);
+        return stats != null ? stats.sent.sum() : 0;
+    }
+
+    /** Messages of exactly {@code type} decoded so far, 0 for types never seen. */
+    public long getReceived(Class<?> type) {
+        TypeStats stats = types.get(type);
+        return stats != null ? stats.received.sum() : 0;
+    }
+
+    public LatencyHistogram getSerializeLatency()   { return serialize; }
+    public LatencyHistogram getDeserializeLatency() { return deserialize; }
+    public LatencyHistogram getEncryptLatency()     { return encrypt; }
+    public LatencyHistogram getDecryptLatency()     { return decrypt; }
+
+    private static String name(Class<?> type) {
+        return type == byte[].class ? "encrypted" : type.getSimpleName();
+    }
+}
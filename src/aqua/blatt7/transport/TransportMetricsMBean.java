@@ -0,0 +1,23 @@
+package aqua.blatt7.transport;
+
+/**
+ * JMX view of {@link TransportMetrics}, registered as {@value TransportMetrics#OBJECT_NAME}.
+ */
+public interface TransportMetricsMBean {
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /** One line per message type: counts and bytes in both directions. */
+    String[] getMessageTypes();
+
+    /** One line per histogram: serialize, deserialize, encrypt, decrypt. */
+    String[] getLatencies();
+
+    void reset();
+}
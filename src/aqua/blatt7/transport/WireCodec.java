@@ -0,0 +1,208 @@
+package aqua.blatt7.transport;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schema-based binary codec. Every registered message class gets a numeric type id which is
+ * written as a two byte header in front of the hand-written body. Payload classes without a
+ * schema still work: they are tagged with {@link #JAVA_SERIALIZED} and fall back to plain
+ * Java serialization.
+ * <p>
+ * Registration happens once during setup; afterwards the codec is read-only and may be
+ * shared by any number of endpoints and threads.
+ */
+public class WireCodec implements PayloadCodec {
+
+    /** Schema for one message class: writes and reads the body without the type header. */
+    public interface Schema<T> {
+        void write(T message, ByteBuffer out) throws IOException;
+
+        T read(ByteBuffer in) throws IOException;
+    }
+
+    public static final int JAVA_SERIALIZED = 0;
+    private static final int MAX_TYPE_ID = 255;
+    private static final int NULL_LENGTH = 0xFFFF;
+
+    private static final class Registration<T> {
+        final int typeId;
+        final Class<T> type;
+        final Schema<T> schema;
+
+        Registration(int typeId, Class<T> type, Schema<T> schema) {
+            this.typeId = typeId;
+            this.type = type;
+            this.schema = schema;
+        }
+    }
+
+    private final Map<Class<?>, Registration<?>> byClass = new HashMap<>();
+    private final Registration<?>[] byId = new Registration<?>[MAX_TYPE_ID + 1];
+    private final JavaSerializationCodec fallback = new JavaSerializationCodec();
+
+    public <T extends Serializable> WireCodec register(int typeId, Class<T> type, Schema<T> schema) {
+        if (typeId <= JAVA_SERIALIZED || typeId > MAX_TYPE_ID)
+            throw new IllegalArgumentException("type id out of range: " + typeId);
+        if (byId[typeId] != null)
+            throw new IllegalArgumentException("type id " + typeId + " already used by " + byId[typeId].type.getName());
+        Registration<T> registration = new Registration<>(typeId, type, schema);
+        byId[typeId] = registration;
+        byClass.put(type, registration);
+        return this;
+    }
+
+    /** Returns the type id of the given class or {@link #JAVA_SERIALIZED} if it has no schema. */
+    public int typeIdOf(Class<?> type) {
+        Registration<?> registration = byClass.get(type);
+        return registration == null ? JAVA_SERIALIZED : registration.typeId;
+    }
+
+    /** Returns the class registered for the given type id or {@code null}. */
+    public Class<?> typeOf(int typeId) {
+        if (typeId <= JAVA_SERIALIZED || typeId > MAX_TYPE_ID || byId[typeId] == null) return null;
+        return byId[typeId].type;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void encode(Serializable payload, ByteBuffer out) throws IOException {
+        Registration<Object> registration = (Registration<Object>) byClass.get(payload.getClass());
+        try {
+            if (registration == null) {
+                out.putShort((short) JAVA_SERIALIZED);
+                fallback.encode(payload, out);
+            } else {
+                out.putShort((short) registration.typeId);
+                registration.schema.write(payload, out);
+            }
+        } catch (BufferOverflowException e) {
+            throw new PayloadTooLargeException(payload.getClass(), e);
+        }
+    }
+
+    @Override
+    public Serializable decode(ByteBuffer in) throws IOException {
+        try {
+            int typeId = in.getShort() & 0xFFFF;
+            if (typeId == JAVA_SERIALIZED) {
+                return fallback.decode(in);
+            }
+            Registration<?> registration = typeId <= MAX_TYPE_ID ? byId[typeId] : null;
+            if (registration == null) {
+                throw new IOException("Unknown message type id " + typeId);
+            }
+            return (Serializable) registration.schema.read(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated datagram", e);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    //  Field helpers for schemas
+    // ---------------------------------------------------------------------
+
+    /** Writes a nullable string as a length-prefixed (modified) UTF-8 sequence without allocating. */
+    public static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putShort((short) NULL_LENGTH);
+            return;
+        }
+        int lengthPos = out.position();
+        out.putShort((short) 0);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        int length = out.position() - lengthPos - 2;
+        if (length >= NULL_LENGTH) throw new IllegalArgumentException("string too long");
+        out.putShort(lengthPos, (short) length);
+    }
+
+    public static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NULL_LENGTH) return null;
+        char[] chars = new char[length];
+        int end = in.position() + length;
+        int n = 0;
+        while (in.position() < end) {
+            int b = in.get() & 0xFF;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[n++] = (char) (((b & 0x1F) << 6) | (in.get() & 0x3F));
+            } else {
+                chars[n++] = (char) (((b & 0x0F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F));
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /** Writes a nullable socket address as family byte, raw address and port. */
+    public static void putAddress(ByteBuffer out, InetSocketAddress address) {
+        if (address == null) {
+            out.put((byte) 0);
+            return;
+        }
+        InetAddress inet = address.getAddress();
+        if (inet == null) {
+            out.put((byte) -1); // unresolved: ship the host name
+            putString(out, address.getHostString());
+        } else {
+            byte[] raw = inet.getAddress();
+            out.put((byte) raw.length);
+            out.put(raw);
+        }
+        out.putShort((short) address.getPort());
+    }
+
+    public static InetSocketAddress getAddress(ByteBuffer in) throws IOException {
+        int family = in.get();
+        if (family == 0) return null;
+        if (family == -1) {
+            String host = getString(in);
+            return InetSocketAddress.createUnresolved(host, in.getShort() & 0xFFFF);
+        }
+        if (family != 4 && family != 16) {
+            throw new IOException("Invalid address family " + family);
+        }
+        byte[] raw = new byte[family];
+        in.get(raw);
+        return new InetSocketAddress(InetAddress.getByAddress(raw), in.getShort() & 0xFFFF);
+    }
+
+    /** Writes a nullable byte array with an int length prefix. */
+    public static void putBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    public static byte[] getBytes(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0) return null;
+        if (length > in.remaining()) throw new IOException("Truncated byte array");
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}